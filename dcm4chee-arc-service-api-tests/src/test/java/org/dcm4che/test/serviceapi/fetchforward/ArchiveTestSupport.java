@@ -0,0 +1,179 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Connection.Protocol;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.TCGroupConfigAEExtension;
+import org.dcm4che3.net.TCGroupConfigAEExtension.DefaultGroup;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.dto.GenericParticipant;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.archive.store.StoreSession;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Archive side configuration shared by the tests executed within the container.
+ */
+public class ArchiveTestSupport {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveTestSupport.class);
+    
+    public static final String SOURCE_AET = "SOURCE_AET";
+    
+    public static final String FETCH_TSUID = "1.2.840.10008.1.2";
+    
+    private ArchiveTestSupport() {
+        // NOP
+    }
+    
+    public static StoreSession createStoreSession(StoreService storeService, Device device) throws Exception {
+        StoreSession session = storeService.createStoreSession(storeService); 
+        session.setStoreParam(ParamFactory.createStoreParam(true));
+        StorageSystem storageSystem = new StorageSystem();
+        storageSystem.setStorageSystemID("test_ss");        
+        StorageSystemGroup grp = new StorageSystemGroup();
+        grp.setGroupID("test_grp");
+        grp.addStorageSystem(storageSystem);
+        session.setStorageSystem(storageSystem);
+        session.setSource(new GenericParticipant("localhost", "testidentity"));
+        session.setRemoteAET(SOURCE_AET);
+        session.setArchiveAEExtension(device.getApplicationEntity("DCM4CHEE")
+                .getAEExtension(ArchiveAEExtension.class));
+        return session;
+    }
+    
+    /**
+     * Stores instances <code>offset</code> to <code>offset + size - 1</code>
+     * derived by {@link SyntheticInstances} to the DB only.
+     */
+    public static void storeSyntheticInstancesToDB(StoreService storeService, Device device,
+            Attributes template, int offset, int size) throws Exception {
+        StoreSession session = createStoreSession(storeService, device);
+        for (int i = offset, end = offset + size; i < end; i++) {
+            StoreContext storeContext = storeService.createStoreContext(session);
+            storeContext.setAttributes(SyntheticInstances.createInstance(template, i));
+            storeContext.setStoreAction(StoreAction.UPDATEDB);
+            storeService.updateDB(storeContext);
+        }
+    }
+    
+    public static List<ArchiveInstanceLocator> createSyntheticLocators(Attributes template,
+            int offset, int size, ExternalLocationTuple... extLocations) {
+        List<ExternalLocationTuple> extLocationTuples = Arrays.asList(extLocations);
+        List<ArchiveInstanceLocator> refs = new ArrayList<ArchiveInstanceLocator>(size);
+        for (int i = offset, end = offset + size; i < end; i++) {
+            refs.add(new ArchiveInstanceLocator.Builder(
+                        template.getString(Tag.SOPClassUID), 
+                        SyntheticInstances.sopInstanceUID(template, i), 
+                        FETCH_TSUID)
+                .externalLocators(extLocationTuples)
+                .studyInstanceUID(template.getString(Tag.StudyInstanceUID))
+                .build());
+        }
+        return refs;
+    }
+    
+    /**
+     * Adds one file system storage system per directory to the group.
+     */
+    public static List<StorageSystem> addFileSystems(StorageSystemGroup grp, Path... dirs) {
+        List<StorageSystem> storageSystems = new ArrayList<StorageSystem>(dirs.length);
+        for (int i = 0; i < dirs.length; i++) {
+            StorageSystem storageSystem = new StorageSystem();
+            storageSystem.setStorageSystemID(grp.getGroupID() + "_fs" + (i + 1));
+            storageSystem.setProviderName("org.dcm4chee.storage.filesystem");
+            storageSystem.setStorageSystemPath(dirs[i].toString());
+            grp.addStorageSystem(storageSystem);
+            storageSystems.add(storageSystem);
+        }
+        return storageSystems;
+    }
+    
+    public static void configureExtDevice(DicomConfiguration config, String newDevice, String aet,
+            String hostname, int port) throws ConfigurationException {
+        LOG.debug("Create Connection dicom");
+        Connection dicom = new Connection("dicom", hostname, port);
+        dicom.setProtocol(Protocol.DICOM);
+        dicom.setConnectionInstalled(true);
+        dicom.setTlsProtocols(new String[] { "TLSv1", "SSLv3" });
+        LOG.debug("Connection dicom:\n{}", dicom);
+
+        LOG.debug("Create ApplicationEntity {}", hostname);
+        ApplicationEntity applicationEntity = new ApplicationEntity(aet);
+        applicationEntity.setAssociationAcceptor(true);
+        applicationEntity.setAssociationInitiator(true);
+        List<Connection> listConnections = new ArrayList<Connection>();
+        listConnections.add(dicom);
+        applicationEntity.setConnections(listConnections);
+        EnumSet<DefaultGroup> scpGroups = EnumSet.of(DefaultGroup.QUERY, DefaultGroup.RETRIEVE, DefaultGroup.STORAGE,
+                DefaultGroup.STORAGE_COMMITMENT);
+        EnumSet<DefaultGroup> scuGroups = EnumSet.of(DefaultGroup.STORAGE, DefaultGroup.STORAGE_COMMITMENT);
+        TCGroupConfigAEExtension tCGroupConfigAEExtension = new TCGroupConfigAEExtension(scpGroups, scuGroups);
+        applicationEntity.addAEExtension(tCGroupConfigAEExtension);
+        LOG.debug("ApplicationEntity {}:\n{}", newDevice.toUpperCase(), applicationEntity);
+
+        LOG.debug("Create Device {}", newDevice);
+        Device extDevice = new Device(newDevice);
+        extDevice.addConnection(dicom);
+        extDevice.addApplicationEntity(applicationEntity);
+        LOG.debug("Device {}:\n{}", newDevice, extDevice);
+
+        config.merge(extDevice);
+    }
+}
@@ -44,6 +44,11 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.jboss.arquillian.core.api.annotation.Observes;
 import org.jboss.arquillian.core.spi.LoadableExtension;
@@ -51,6 +56,11 @@ import org.jboss.arquillian.test.spi.TestClass;
 
 /**
  * Adds support for calling extended lifecycle methods on Arquillian tests.
+ * <p>
+ * Methods annotated with {@link BeforeSuite} and {@link AfterSuite} are
+ * executed once per test suite, even if several test classes declare or
+ * inherit them. Test classes use them to share external devices and their
+ * data instead of setting them up per deployment.
  * 
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
  */
@@ -65,18 +75,84 @@ public class ArquillianExtendedLifecycleMethodExecuter implements LoadableExtens
     public @interface AfterUnDeploy {
     }
     
+    /**
+     * Static method executed before the first deployment of the first test
+     * class of the suite declaring it. Executed once per suite.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface BeforeSuite {
+    }
+    
+    /**
+     * Static method executed after all test classes of the suite. Executed
+     * once per suite, in reverse order of the deployment of the declaring
+     * test classes.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface AfterSuite {
+    }
+    
+    /*
+     * Shared by all observer instances of the test JVM.
+     */
+    private static final Set<Method> executedBeforeSuiteMethods = new HashSet<Method>();
+    private static final List<Method> pendingAfterSuiteMethods = new ArrayList<Method>();
+    
     @Override
     public void register(ExtensionBuilder builder) {
         builder.observer(ArquillianExtendedLifecycleMethodExecuter.class);
     }
 
     public void executeBeforeDeploy(@Observes org.jboss.arquillian.container.spi.event.container.BeforeDeploy event, TestClass testClass) {
+        executeBeforeSuite(testClass.getMethods(BeforeSuite.class));
+        registerAfterSuite(testClass.getMethods(AfterSuite.class));
         execute(testClass.getMethods(BeforeDeploy.class));
     }
     
     public void executeAfterUnDeploy(@Observes org.jboss.arquillian.container.spi.event.container.AfterUnDeploy event, TestClass testClass) {
         execute(testClass.getMethods(AfterUnDeploy.class));
     }
+    
+    public void executeAfterSuite(@Observes org.jboss.arquillian.test.spi.event.suite.AfterSuite event) {
+        Method[] methods;
+        synchronized (pendingAfterSuiteMethods) {
+            Collections.reverse(pendingAfterSuiteMethods);
+            methods = pendingAfterSuiteMethods.toArray(new Method[pendingAfterSuiteMethods.size()]);
+            pendingAfterSuiteMethods.clear();
+        }
+        synchronized (executedBeforeSuiteMethods) {
+            executedBeforeSuiteMethods.clear();
+        }
+        execute(methods);
+    }
+    
+    private static void executeBeforeSuite(Method[] methods) {
+        if (methods == null) {
+            return;
+        }
+        synchronized (executedBeforeSuiteMethods) {
+            for (Method method : methods) {
+                if (executedBeforeSuiteMethods.add(method)) {
+                    execute(new Method[] { method });
+                }
+            }
+        }
+    }
+    
+    private static void registerAfterSuite(Method[] methods) {
+        if (methods == null) {
+            return;
+        }
+        synchronized (pendingAfterSuiteMethods) {
+            for (Method method : methods) {
+                if (!pendingAfterSuiteMethods.contains(method)) {
+                    pendingAfterSuiteMethods.add(method);
+                }
+            }
+        }
+    }
 
     private static void execute(Method[] methods) {
         if (methods == null) {
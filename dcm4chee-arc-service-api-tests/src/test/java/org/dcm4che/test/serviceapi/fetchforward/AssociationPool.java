@@ -0,0 +1,369 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps associations initiated by an application entity open for reuse.
+ * <p>
+ * Associations are pooled by calling and called AE title, remote connection
+ * and requested presentation contexts. The number of associations opened by
+ * the pool is limited by the <code>dcmLimitOpenAssociations</code> of the
+ * device of the application entity (0 = unlimited), or by an explicit limit;
+ * if the limit is reached, idle associations of other keys are released,
+ * otherwise {@link #borrow(Connection, AAssociateRQ)} waits for an association
+ * to be returned. Associations idle for longer than the idle timeout are
+ * released.
+ * <p>
+ * The pool only serves associations opened by its users, e.g. test code
+ * issuing requests to an external device. The associations opened by the
+ * <code>FetchForwardService</code> itself are not pooled.
+ */
+public class AssociationPool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AssociationPool.class);
+    
+    private static final String METRIC_PREFIX = "associationpool.";
+    
+    private static final class Idle {
+        final Association as;
+        final long since;
+        
+        Idle(Association as, long since) {
+            this.as = as;
+            this.since = since;
+        }
+    }
+    
+    private final ApplicationEntity ae;
+    private final int maxOpen;
+    private final long idleTimeoutMillis;
+    private final Map<String, LinkedList<Idle>> idle = new HashMap<String, LinkedList<Idle>>();
+    private final Map<Association, String> borrowed = new IdentityHashMap<Association, String>();
+    private final ScheduledExecutorService evictor;
+    private volatile MetricsRegistry metrics;
+    private int open;
+    private int opened;
+    private int reused;
+    private boolean closed;
+    
+    public AssociationPool(ApplicationEntity ae, long idleTimeoutMillis) {
+        this(ae, ae.getDevice().getLimitOpenAssociations(), idleTimeoutMillis);
+    }
+    
+    /**
+     * @param maxOpen maximal number of associations opened by the pool
+     *        (0 = unlimited)
+     */
+    public AssociationPool(ApplicationEntity ae, int maxOpen, long idleTimeoutMillis) {
+        this.ae = ae;
+        this.maxOpen = maxOpen;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AssociationPool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1L, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Returns an idle association matching the request, or opens a new one.
+     * The association has to be passed to {@link #release(Association)} or
+     * {@link #invalidate(Association)} after use.
+     */
+    public Association borrow(Connection remote, AAssociateRQ rq) throws Exception {
+        String key = keyOf(remote, rq);
+        long start = System.nanoTime();
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("Association pool closed");
+                }
+                Association as = pollIdle(key);
+                if (as != null) {
+                    reused++;
+                    borrowed.put(as, key);
+                    recordWait(start, "reused");
+                    return as;
+                }
+                if (maxOpen <= 0 || open < maxOpen || releaseIdleOfOtherKey()) {
+                    open++;
+                    break;
+                }
+                wait();
+            }
+        }
+        long connectStart = recordWait(start, "opened");
+        Association as;
+        try {
+            as = ae.connect(remote, rq);
+        } catch (Exception e) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            opened++;
+            borrowed.put(as, key);
+        }
+        MetricsRegistry metrics = this.metrics;
+        if (metrics != null) {
+            metrics.histogram(METRIC_PREFIX + "connect").record(System.nanoTime() - connectStart);
+        }
+        return as;
+    }
+    
+    /**
+     * Records the time spent waiting for an idle association or a free slot
+     * in histogram <code>associationpool.wait</code> and counts borrowed
+     * associations in counters <code>associationpool.reused</code> and
+     * <code>associationpool.opened</code>. The time to open associations is
+     * recorded in histogram <code>associationpool.connect</code>.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+    
+    private long recordWait(long start, String outcome) {
+        long now = System.nanoTime();
+        MetricsRegistry metrics = this.metrics;
+        if (metrics != null) {
+            metrics.histogram(METRIC_PREFIX + "wait").record(now - start);
+            metrics.counter(METRIC_PREFIX + outcome).increment();
+        }
+        return now;
+    }
+    
+    /**
+     * Returns a borrowed association to the pool.
+     */
+    public void release(Association as) {
+        synchronized (this) {
+            String key = borrowed.remove(as);
+            if (key != null && !closed && as.isReadyForDataTransfer()) {
+                LinkedList<Idle> list = idle.get(key);
+                if (list == null) {
+                    idle.put(key, list = new LinkedList<Idle>());
+                }
+                list.addFirst(new Idle(as, System.currentTimeMillis()));
+                notifyAll();
+                return;
+            }
+            if (key != null) {
+                open--;
+                notifyAll();
+            }
+        }
+        releaseQuietly(as);
+    }
+    
+    /**
+     * Closes a borrowed association which shall not be reused, e.g. after
+     * a failed operation.
+     */
+    public void invalidate(Association as) {
+        synchronized (this) {
+            if (borrowed.remove(as) != null) {
+                open--;
+                notifyAll();
+            }
+        }
+        releaseQuietly(as);
+    }
+    
+    public synchronized int getOpen() {
+        return open;
+    }
+    
+    public synchronized int getIdle() {
+        int count = 0;
+        for (LinkedList<Idle> list : idle.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the number of associations opened by the pool.
+     */
+    public synchronized int getOpened() {
+        return opened;
+    }
+    
+    /**
+     * Returns the number of borrowed associations which were reused.
+     */
+    public synchronized int getReused() {
+        return reused;
+    }
+    
+    @Override
+    public void close() {
+        List<Association> toRelease = new ArrayList<Association>();
+        synchronized (this) {
+            closed = true;
+            for (LinkedList<Idle> list : idle.values()) {
+                for (Idle entry : list) {
+                    toRelease.add(entry.as);
+                }
+            }
+            open -= toRelease.size();
+            idle.clear();
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        for (Association as : toRelease) {
+            releaseQuietly(as);
+        }
+    }
+    
+    void evictIdle() {
+        List<Association> toRelease = new ArrayList<Association>();
+        synchronized (this) {
+            long expired = System.currentTimeMillis() - idleTimeoutMillis;
+            for (Iterator<LinkedList<Idle>> lists = idle.values().iterator(); lists.hasNext();) {
+                LinkedList<Idle> list = lists.next();
+                // most recently used first
+                while (!list.isEmpty() && list.getLast().since <= expired) {
+                    toRelease.add(list.removeLast().as);
+                }
+                if (list.isEmpty()) {
+                    lists.remove();
+                }
+            }
+            open -= toRelease.size();
+            if (!toRelease.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (Association as : toRelease) {
+            LOG.debug("{}: release idle association", as);
+            releaseQuietly(as);
+        }
+    }
+    
+    private Association pollIdle(String key) {
+        LinkedList<Idle> list = idle.get(key);
+        while (list != null && !list.isEmpty()) {
+            Association as = list.removeFirst().as;
+            if (as.isReadyForDataTransfer()) {
+                return as;
+            }
+            // aborted or released by the peer
+            open--;
+        }
+        return null;
+    }
+    
+    private boolean releaseIdleOfOtherKey() {
+        for (LinkedList<Idle> list : idle.values()) {
+            if (!list.isEmpty()) {
+                final Association as = list.removeLast().as;
+                open--;
+                evictor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseQuietly(as);
+                    }
+                });
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /*
+     * The Calling AE Title of the request is only filled in by connect, so
+     * it defaults to the AE Title of the pooling Application Entity here.
+     */
+    private String keyOf(Connection remote, AAssociateRQ rq) {
+        String callingAET = rq.getCallingAET() != null ? rq.getCallingAET() : ae.getAETitle();
+        StringBuilder sb = new StringBuilder()
+            .append(callingAET).append("->").append(rq.getCalledAET())
+            .append('@').append(remote.getHostname()).append(':').append(remote.getPort());
+        for (PresentationContext pc : rq.getPresentationContexts()) {
+            sb.append('|').append(pc.getAbstractSyntax());
+            for (String ts : pc.getTransferSyntaxes()) {
+                sb.append(',').append(ts);
+            }
+        }
+        return sb.toString();
+    }
+    
+    private static void releaseQuietly(Association as) {
+        try {
+            as.release();
+        } catch (IOException e) {
+            LOG.debug("{}: failed to release association", as, e);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the associations accepted by the external device for back-to-back
+ * requests, with and without {@link AssociationPool}, and verifies the limit
+ * of open associations of the pool.
+ */
+@RunWith(Arquillian.class)
+public class AssociationPoolTest {
+    private static final Logger LOG = LoggerFactory.getLogger(AssociationPoolTest.class);
+    
+    static final int REQUESTS = 100;
+    
+    static final long BORROW_WAIT_MILLIS = 200L;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int PROXY_PORT = 11123;
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    private DicomLinkProxy proxy;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", REQUESTS);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(AssociationPoolTest.class);
+        war.addClass(AssociationPool.class);
+        war.addClass(MetricsRegistry.class);
+        war.addClass(SimpleMetricsRegistry.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Before
+    public void startProxy() throws Exception {
+        proxy = new DicomLinkProxy(PROXY_PORT, "localhost", 11122).start();
+    }
+    
+    @After
+    public void stopProxy() {
+        proxy.close();
+    }
+    
+    @Test
+    public void backToBackFetches() throws Exception {
+        ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", PROXY_PORT);
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 0, REQUESTS);
+        
+        final AtomicInteger fetched = new AtomicInteger();
+        FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                fetched.addAndGet(instances.size());
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            List<ArchiveInstanceLocator> failed = fetchForwardService.fetchForward("DCM4CHEE",
+                    ArchiveTestSupport.createSyntheticLocators(template, i, 1,
+                            new ExternalLocationTuple("extdcm", Availability.NEARLINE)),
+                    fetchCallBack, fetchCallBack);
+            Assert.assertTrue(failed.isEmpty());
+        }
+        long elapsed = System.nanoTime() - start;
+        
+        LOG.info("{} back-to-back fetches in {} ms opened {} associations to the external device",
+                REQUESTS, elapsed / 1000000L, proxy.getAcceptedConnections());
+        Assert.assertEquals(REQUESTS, fetched.get());
+    }
+    
+    @Test
+    public void pooledAssociationsAreReused() throws Exception {
+        AssociationPool pool = new AssociationPool(device.getApplicationEntity("DCM4CHEE"), 60000L);
+        SimpleMetricsRegistry metrics = new SimpleMetricsRegistry();
+        pool.setMetrics(metrics);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                echo(pool);
+            }
+            long elapsed = System.nanoTime() - start;
+            
+            LOG.info("{} back-to-back pooled C-ECHOs in {} ms opened {} associations to the external device, "
+                    + "waited for associations {}",
+                    REQUESTS, elapsed / 1000000L, proxy.getAcceptedConnections(),
+                    metrics.getHistogram("associationpool.wait"));
+            Assert.assertEquals(1, pool.getOpened());
+            Assert.assertEquals(REQUESTS - 1, pool.getReused());
+            Assert.assertEquals(1, proxy.getAcceptedConnections());
+            Assert.assertEquals(1, metrics.getValue("associationpool.opened"));
+            Assert.assertEquals(REQUESTS - 1, metrics.getValue("associationpool.reused"));
+            Assert.assertEquals(REQUESTS, metrics.getHistogram("associationpool.wait").count());
+            Assert.assertEquals(1, metrics.getHistogram("associationpool.connect").count());
+        } finally {
+            pool.close();
+        }
+    }
+    
+    @Test
+    public void defaultCallingAETMatchesExplicitOne() throws Exception {
+        AssociationPool pool = new AssociationPool(device.getApplicationEntity("DCM4CHEE"), 60000L);
+        try {
+            echo(pool, null);
+            echo(pool, "DCM4CHEE");
+            Assert.assertEquals(1, pool.getOpened());
+            Assert.assertEquals(1, pool.getReused());
+        } finally {
+            pool.close();
+        }
+    }
+    
+    @Test
+    public void idleAssociationsAreEvicted() throws Exception {
+        AssociationPool pool = new AssociationPool(device.getApplicationEntity("DCM4CHEE"), 200L);
+        try {
+            echo(pool);
+            Assert.assertEquals(1, pool.getIdle());
+            for (int i = 0; i < 50 && (pool.getOpen() > 0 || proxy.getOpenConnections() > 0); i++) {
+                Thread.sleep(100L);
+            }
+            Assert.assertEquals(0, pool.getIdle());
+            Assert.assertEquals(0, pool.getOpen());
+            Assert.assertEquals(0, proxy.getOpenConnections());
+        } finally {
+            pool.close();
+        }
+    }
+    
+    @Test
+    public void limitReleasesIdleAssociationOfOtherKey() throws Exception {
+        AssociationPool pool = new AssociationPool(device.getApplicationEntity("DCM4CHEE"), 1, 60000L);
+        try {
+            echo(pool, null, UID.ImplicitVRLittleEndian);
+            echo(pool, null, UID.ExplicitVRLittleEndian);
+            Assert.assertEquals(2, pool.getOpened());
+            Assert.assertEquals(1, pool.getOpen());
+            Assert.assertEquals(1, pool.getIdle());
+            for (int i = 0; i < 50 && proxy.getOpenConnections() > 1; i++) {
+                Thread.sleep(100L);
+            }
+            Assert.assertEquals(1, proxy.getOpenConnections());
+        } finally {
+            pool.close();
+        }
+    }
+    
+    @Test
+    public void borrowWaitsAtLimit() throws Exception {
+        final AssociationPool pool = new AssociationPool(device.getApplicationEntity("DCM4CHEE"), 1, 60000L);
+        SimpleMetricsRegistry metrics = new SimpleMetricsRegistry();
+        pool.setMetrics(metrics);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Association as = pool.borrow(remote(), echoRQ(null, UID.ImplicitVRLittleEndian));
+            Future<Association> waiting = executor.submit(new Callable<Association>() {
+                @Override
+                public Association call() throws Exception {
+                    return pool.borrow(remote(), echoRQ(null, UID.ImplicitVRLittleEndian));
+                }
+            });
+            Thread.sleep(BORROW_WAIT_MILLIS);
+            Assert.assertFalse("borrow did not wait for the limit", waiting.isDone());
+            pool.release(as);
+            Assert.assertSame(as, waiting.get(5, TimeUnit.SECONDS));
+            pool.release(as);
+            
+            LOG.info("Waited for associations {}", metrics.getHistogram("associationpool.wait"));
+            Assert.assertEquals(1, pool.getOpened());
+            Assert.assertEquals(1, pool.getReused());
+            Assert.assertTrue(metrics.getHistogram("associationpool.wait").max()
+                    >= TimeUnit.MILLISECONDS.toNanos(BORROW_WAIT_MILLIS));
+        } finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+    }
+    
+    private void echo(AssociationPool pool) throws Exception {
+        echo(pool, null);
+    }
+    
+    private void echo(AssociationPool pool, String callingAET) throws Exception {
+        echo(pool, callingAET, UID.ImplicitVRLittleEndian);
+    }
+    
+    private void echo(AssociationPool pool, String callingAET, String tsuid) throws Exception {
+        Association as = pool.borrow(remote(), echoRQ(callingAET, tsuid));
+        boolean success = false;
+        try {
+            DimseRSP rsp = as.cecho();
+            rsp.next();
+            Assert.assertEquals(Status.Success, rsp.getCommand().getInt(Tag.Status, -1));
+            success = true;
+        } finally {
+            // also on AssertionError, so a broken association is not reused
+            if (success) {
+                pool.release(as);
+            } else {
+                pool.invalidate(as);
+            }
+        }
+    }
+    
+    private static Connection remote() {
+        return new Connection("dicom", "localhost", PROXY_PORT);
+    }
+    
+    private static AAssociateRQ echoRQ(String callingAET, String tsuid) {
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCallingAET(callingAET);
+        rq.setCalledAET("DCMEXT");
+        rq.addPresentationContext(new PresentationContext(1, UID.VerificationSOPClass, tsuid));
+        return rq;
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
@@ -0,0 +1,210 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.archive.store.StoreSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores many instances to the DB (<code>StoreAction.UPDATEDB</code>) in
+ * transactions of {@link #getChunkSize()} instances, instead of one
+ * transaction per instance.
+ * <p>
+ * The first instance of each series is stored in a transaction of its own,
+ * so the patient, study and series are created once and found by all other
+ * instances of the series. <code>StoreService.updateDB</code> joins the
+ * transaction of the chunk, so the inserts of a chunk are flushed together
+ * and can be sent as JDBC batches if the persistence unit of the archive
+ * enables <code>hibernate.jdbc.batch_size</code>. If a chunk fails, it is
+ * rolled back and stored instance by instance, to tell the failed instances.
+ */
+public class BatchedUpdateDB {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchedUpdateDB.class);
+    
+    public static class Result {
+        private final int stored;
+        private final List<Attributes> failed;
+        private final int transactions;
+        private final long nanos;
+        
+        Result(int stored, List<Attributes> failed, int transactions, long nanos) {
+            this.stored = stored;
+            this.failed = failed;
+            this.transactions = transactions;
+            this.nanos = nanos;
+        }
+        
+        public int getStored() {
+            return stored;
+        }
+        
+        public List<Attributes> getFailed() {
+            return failed;
+        }
+        
+        public int getTransactions() {
+            return transactions;
+        }
+        
+        public long getMillis() {
+            return nanos / 1000000L;
+        }
+        
+        public double getInstancesPerSecond() {
+            return nanos == 0 ? 0 : stored * 1e9 / nanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("stored=%d, failed=%d, %d transactions, %d ms, %.1f instances/s",
+                    stored, failed.size(), transactions, getMillis(), getInstancesPerSecond());
+        }
+    }
+    
+    private final StoreService storeService;
+    private final UserTransaction utx;
+    private int chunkSize = 500;
+    
+    public BatchedUpdateDB(StoreService storeService, UserTransaction utx) {
+        this.storeService = storeService;
+        this.utx = utx;
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+    
+    public Result updateDB(StoreSession session, Collection<Attributes> instances) throws Exception {
+        long start = System.nanoTime();
+        List<Attributes> failed = new ArrayList<Attributes>();
+        int stored = 0;
+        int transactions = 0;
+        
+        List<Attributes> rest = new ArrayList<Attributes>(instances.size());
+        Set<String> series = new HashSet<String>();
+        for (Attributes attrs : instances) {
+            if (series.add(attrs.getString(Tag.SeriesInstanceUID))) {
+                // creates patient, study and series
+                transactions++;
+                if (updateDB(session, attrs)) {
+                    stored++;
+                } else {
+                    failed.add(attrs);
+                }
+            } else {
+                rest.add(attrs);
+            }
+        }
+        
+        for (int from = 0, size = rest.size(); from < size; from += chunkSize) {
+            List<Attributes> chunk = rest.subList(from, Math.min(from + chunkSize, size));
+            transactions++;
+            if (updateDB(session, chunk)) {
+                stored += chunk.size();
+                continue;
+            }
+            LOG.info("Failed to store chunk of {} instances - store them one by one", chunk.size());
+            for (Attributes attrs : chunk) {
+                transactions++;
+                if (updateDB(session, attrs)) {
+                    stored++;
+                } else {
+                    failed.add(attrs);
+                }
+            }
+        }
+        return new Result(stored, failed, transactions, System.nanoTime() - start);
+    }
+    
+    private boolean updateDB(StoreSession session, Attributes attrs) throws Exception {
+        List<Attributes> single = new ArrayList<Attributes>(1);
+        single.add(attrs);
+        return updateDB(session, single);
+    }
+    
+    /*
+     * Stores the instances in one transaction, which is rolled back on failure.
+     */
+    private boolean updateDB(StoreSession session, List<Attributes> chunk) throws Exception {
+        utx.begin();
+        try {
+            for (Attributes attrs : chunk) {
+                StoreContext storeContext = storeService.createStoreContext(session);
+                storeContext.setAttributes(attrs);
+                storeContext.setStoreAction(StoreAction.UPDATEDB);
+                storeService.updateDB(storeContext);
+            }
+            if (utx.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
+                utx.rollback();
+                return false;
+            }
+            utx.commit();
+            return true;
+        } catch (Exception e) {
+            LOG.debug("Rollback transaction of {} instances", chunk.size(), e);
+            if (utx.getStatus() != Status.STATUS_NO_TRANSACTION) {
+                utx.rollback();
+            }
+            return false;
+        }
+    }
+}
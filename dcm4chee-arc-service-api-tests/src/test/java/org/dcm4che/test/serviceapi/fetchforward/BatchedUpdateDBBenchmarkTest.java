@@ -0,0 +1,175 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.transaction.UserTransaction;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.util.UIDUtils;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.archive.store.StoreSession;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of storing a study of {@link #STUDY_SIZE}
+ * instances to the DB instance by instance with storing it by
+ * {@link BatchedUpdateDB} in chunks of several sizes.
+ * <p>
+ * A smaller study is stored both ways before, so neither way pays for the
+ * warm-up of the JIT, the connection pool and the caches of the DB.
+ * Runs only with the <code>benchmark</code> profile.
+ */
+@RunWith(Arquillian.class)
+public class BatchedUpdateDBBenchmarkTest {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchedUpdateDBBenchmarkTest.class);
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    static final int STUDY_SIZE = 5000;
+    
+    static final int WARMUP_STUDY_SIZE = 500;
+    
+    private static final int[] CHUNK_SIZES = { 100, 1000 };
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private UserTransaction utx;
+    
+    @Inject
+    private Device device;
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(BatchedUpdateDBBenchmarkTest.class);
+        war.addClass(BatchedUpdateDB.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void comparesPerRowWithBatchedUpdateDB() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        template.setString(Tag.PatientID, VR.LO, "BATCHED-" + System.currentTimeMillis());
+        StoreSession session = ArchiveTestSupport.createStoreSession(storeService, device);
+        BatchedUpdateDB batched = new BatchedUpdateDB(storeService, utx);
+        
+        // warm-up, not measured
+        updateDBOneByOne(session, newStudy(template, WARMUP_STUDY_SIZE));
+        batched.setChunkSize(CHUNK_SIZES[0]);
+        batched.updateDB(session, newStudy(template, WARMUP_STUDY_SIZE));
+        
+        long elapsed = updateDBOneByOne(session, newStudy(template, STUDY_SIZE));
+        double oneByOne = STUDY_SIZE * 1e9 / elapsed;
+        LOG.info("updateDB of {} instances one by one: {} ms, {} instances/s",
+                STUDY_SIZE, elapsed / 1000000L, String.format("%.1f", oneByOne));
+        
+        for (int chunkSize : CHUNK_SIZES) {
+            batched.setChunkSize(chunkSize);
+            BatchedUpdateDB.Result result = batched.updateDB(session, newStudy(template, STUDY_SIZE));
+            LOG.info("updateDB of {} instances in chunks of {}: {}, {} times one by one",
+                    STUDY_SIZE, chunkSize, result,
+                    String.format("%.1f", result.getInstancesPerSecond() / oneByOne));
+            
+            Assert.assertEquals(STUDY_SIZE, result.getStored());
+            Assert.assertTrue(result.getFailed().isEmpty());
+            // the first instance of the series, then full chunks
+            Assert.assertEquals(1 + (STUDY_SIZE - 1 + chunkSize - 1) / chunkSize, result.getTransactions());
+        }
+    }
+    
+    /*
+     * Returns the time to store the study instance by instance.
+     */
+    private long updateDBOneByOne(StoreSession session, List<Attributes> study) throws Exception {
+        long start = System.nanoTime();
+        for (Attributes attrs : study) {
+            StoreContext storeContext = storeService.createStoreContext(session);
+            storeContext.setAttributes(attrs);
+            storeContext.setStoreAction(StoreAction.UPDATEDB);
+            storeService.updateDB(storeContext);
+        }
+        return System.nanoTime() - start;
+    }
+    
+    private static List<Attributes> newStudy(Attributes template, int size) {
+        String studyIUID = UIDUtils.createUID();
+        String seriesIUID = UIDUtils.createUID();
+        List<Attributes> study = new ArrayList<Attributes>(size);
+        for (int i = 0; i < size; i++) {
+            Attributes attrs = new Attributes(template);
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+            attrs.setString(Tag.SeriesInstanceUID, VR.UI, seriesIUID);
+            attrs.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+            attrs.setString(Tag.InstanceNumber, VR.IS, Integer.toString(i + 1));
+            study.add(attrs);
+        }
+        return study;
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
@@ -0,0 +1,249 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.Priority;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores instances derived by {@link SyntheticInstances} from a template
+ * over several parallel associations.
+ * <p>
+ * Instances are created in memory while storing - no files are written.
+ * Each association invokes up to <code>maxOpsInvoked</code> C-STORE
+ * requests without waiting for their responses, if the peer accepts
+ * asynchronous operations.
+ */
+public class BulkSeeder {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(BulkSeeder.class);
+    
+    private static final int PCID = 1;
+    
+    /**
+     * Outcome of {@link BulkSeeder#seed(Attributes, int, int)}.
+     */
+    public static class Result {
+        private final int stored;
+        private final int failed;
+        private final long nanos;
+        
+        Result(int stored, int failed, long nanos) {
+            this.stored = stored;
+            this.failed = failed;
+            this.nanos = nanos;
+        }
+        
+        public int getStored() {
+            return stored;
+        }
+        
+        public int getFailed() {
+            return failed;
+        }
+        
+        public long getMillis() {
+            return nanos / 1000000L;
+        }
+        
+        public double getInstancesPerSecond() {
+            return nanos == 0 ? 0 : stored * 1e9 / nanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("stored=%d, failed=%d, %d ms, %.1f instances/s",
+                    stored, failed, getMillis(), getInstancesPerSecond());
+        }
+    }
+    
+    private final Device device;
+    private final ApplicationEntity ae;
+    private final Connection remote;
+    private final String calledAET;
+    private int associations = 4;
+    private int maxOpsInvoked = 16;
+    
+    /**
+     * @param device device to connect from, e.g. <code>storescu</code>; the
+     *        seeder sets its executors, so it must not be shared
+     * @param callingAET AE of <code>device</code> to connect from
+     */
+    public BulkSeeder(Device device, String callingAET, String host, int port, String calledAET) {
+        this.device = device;
+        this.ae = device.getApplicationEntity(callingAET);
+        if (ae == null) {
+            throw new IllegalArgumentException("No AE " + callingAET + " in device " + device.getDeviceName());
+        }
+        this.remote = new Connection("seed", host, port);
+        this.calledAET = calledAET;
+    }
+    
+    public int getAssociations() {
+        return associations;
+    }
+    
+    public BulkSeeder setAssociations(int associations) {
+        if (associations <= 0) {
+            throw new IllegalArgumentException("associations: " + associations);
+        }
+        this.associations = associations;
+        return this;
+    }
+    
+    public int getMaxOpsInvoked() {
+        return maxOpsInvoked;
+    }
+    
+    /**
+     * @param maxOpsInvoked outstanding C-STORE requests per association;
+     *        1 waits for each response before the next request
+     */
+    public BulkSeeder setMaxOpsInvoked(int maxOpsInvoked) {
+        if (maxOpsInvoked <= 0) {
+            throw new IllegalArgumentException("maxOpsInvoked: " + maxOpsInvoked);
+        }
+        this.maxOpsInvoked = maxOpsInvoked;
+        return this;
+    }
+    
+    /**
+     * Stores the instances with indexes <code>from</code> to
+     * <code>from + count - 1</code> derived from <code>template</code>.
+     * Association <i>k</i> stores the instances with index modulo the
+     * number of associations equal to <i>k</i>.
+     */
+    public Result seed(final Attributes template, final int from, final int count) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        final AtomicInteger stored = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        try {
+            int n = Math.max(1, Math.min(associations, count));
+            List<Future<Void>> workers = new ArrayList<Future<Void>>(n);
+            long start = System.nanoTime();
+            for (int k = 0; k < n; k++) {
+                final int first = from + k;
+                final int step = n;
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        storeEvery(template, first, step, from + count, stored, failed);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+            Result result = new Result(stored.get(), failed.get(), System.nanoTime() - start);
+            LOG.info("Seeded {} over {} associations with max {} outstanding operations: {}",
+                    calledAET, n, maxOpsInvoked, result);
+            return result;
+        } finally {
+            executor.shutdown();
+            scheduledExecutor.shutdown();
+        }
+    }
+    
+    private void storeEvery(Attributes template, int first, int step, int end,
+            final AtomicInteger stored, final AtomicInteger failed) throws Exception {
+        String cuid = template.getString(Tag.SOPClassUID);
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCalledAET(calledAET);
+        rq.setMaxOpsInvoked(maxOpsInvoked);
+        rq.setMaxOpsPerformed(1);
+        rq.addPresentationContext(new PresentationContext(PCID, cuid,
+                UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian));
+        Association as = ae.connect(remote, rq);
+        try {
+            PresentationContext pc = as.getAAssociateAC().getPresentationContext(PCID);
+            if (pc == null || !pc.isAccepted()) {
+                throw new IOException(calledAET + " rejected " + cuid);
+            }
+            String tsuid = pc.getTransferSyntax();
+            for (int i = first; i < end; i += step) {
+                Attributes attrs = SyntheticInstances.createInstance(template, i);
+                as.cstore(cuid, attrs.getString(Tag.SOPInstanceUID), Priority.NORMAL,
+                        new DataWriterAdapter(attrs), tsuid,
+                        new DimseRSPHandler(as.nextMessageID()) {
+                            @Override
+                            public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                                super.onDimseRSP(as, cmd, data);
+                                int status = cmd.getInt(Tag.Status, -1);
+                                if (status == Status.Success || (status & 0xF000) == 0xB000) {
+                                    stored.incrementAndGet();
+                                } else {
+                                    failed.incrementAndGet();
+                                }
+                            }
+                        });
+            }
+            as.waitForOutstandingRSP();
+        } finally {
+            as.release();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the seeding rate of {@link BulkSeeder} against the external
+ * device for several numbers of parallel associations and outstanding
+ * operations. Runs outside the container.
+ * <p>
+ * The number of instances per configuration is taken from the system
+ * property <code>seed.instances</code>, default 10000. Runs only with the
+ * <code>benchmark</code> profile.
+ */
+public class BulkSeedingBenchmarkTest {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(BulkSeedingBenchmarkTest.class);
+    
+    private static final String EXT_DEVICE = "dcmext";
+    
+    private static final int INSTANCES = Integer.getInteger("seed.instances", 10000);
+    
+    private static final int[][] CONFIGURATIONS = {
+        // associations, maxOpsInvoked
+        { 1, 1 },
+        { 1, 16 },
+        { 4, 1 },
+        { 4, 16 },
+        { 8, 32 }
+    };
+    
+    /*
+     * Offset of the instances of the first configuration, beyond the instances sent by
+     * ExternalDeviceControl, so this test does not interfere with the registry.
+     */
+    private static final int FIRST_INSTANCE = 400000;
+    
+    private static boolean started;
+    
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        started = !ExternalDeviceControl.isExternalDeviceRunning(EXT_DEVICE);
+        ExternalDeviceControl.startExternalDevice();
+    }
+    
+    @AfterClass
+    public static void afterClass() {
+        if (started) {
+            ExternalDeviceControl.stopExternalDevice(EXT_DEVICE);
+        }
+    }
+    
+    @Test
+    public void seedWithIncreasingParallelism() throws Exception {
+        Attributes template = SAXReader.parse(BulkSeedingBenchmarkTest.class.getClassLoader()
+                .getResource("testdata/DB700C26_original.xml").toString());
+        int port = ExternalDeviceControl.findDevice(EXT_DEVICE).getConnections().get(0).getPort();
+        int from = FIRST_INSTANCE;
+        StringBuilder report = new StringBuilder();
+        for (int[] cfg : CONFIGURATIONS) {
+            BulkSeeder seeder = new BulkSeeder(
+                    ExternalDeviceControl.getDicomConfig().findDevice("storescu"), "STORESCU",
+                    "localhost", port, "DCMEXT")
+                    .setAssociations(cfg[0])
+                    .setMaxOpsInvoked(cfg[1]);
+            BulkSeeder.Result result = seeder.seed(template, from, INSTANCES);
+            from += INSTANCES;
+            
+            Assert.assertEquals(0, result.getFailed());
+            Assert.assertEquals(INSTANCES, result.getStored());
+            report.append(String.format("%n  associations=%d, maxOpsInvoked=%d: %s",
+                    cfg[0], cfg[1], result));
+        }
+        LOG.info("Seeding rate of {} instances:{}", INSTANCES, report);
+    }
+}
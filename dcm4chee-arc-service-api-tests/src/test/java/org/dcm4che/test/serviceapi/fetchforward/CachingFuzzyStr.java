@@ -0,0 +1,153 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.soundex.FuzzyStr;
+
+/**
+ * {@link FuzzyStr} decorator memoizing the fuzzy encodings of another
+ * {@link FuzzyStr}.
+ * <p>
+ * Patient and physician name components repeat constantly in an archive,
+ * so most encodings are served from the cache. The cache is bounded by
+ * <code>maxSize</code>: when it is full, the least recently used encoding is
+ * evicted, so the frequent names stay cached.
+ */
+public class CachingFuzzyStr implements FuzzyStr {
+    
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    
+    private final FuzzyStr fuzzyStr;
+    private final int maxSize;
+    private final LinkedHashMap<String, String> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    public CachingFuzzyStr(FuzzyStr fuzzyStr) {
+        this(fuzzyStr, DEFAULT_MAX_SIZE);
+    }
+    
+    public CachingFuzzyStr(FuzzyStr fuzzyStr, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        }
+        this.fuzzyStr = fuzzyStr;
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, String>(Math.min(maxSize, 1024), 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > CachingFuzzyStr.this.maxSize;
+            }
+        };
+    }
+    
+    @Override
+    public String toFuzzy(String s) {
+        if (s == null) {
+            return fuzzyStr.toFuzzy(s);
+        }
+        String fuzzy;
+        synchronized (cache) {
+            fuzzy = cache.get(s);
+        }
+        if (fuzzy != null) {
+            hits.incrementAndGet();
+            return fuzzy;
+        }
+        misses.incrementAndGet();
+        // encode outside the lock, a concurrent miss of the same name just encodes it twice
+        fuzzy = fuzzyStr.toFuzzy(s);
+        if (fuzzy != null) {
+            synchronized (cache) {
+                cache.put(s, fuzzy);
+            }
+        }
+        return fuzzy;
+    }
+    
+    public FuzzyStr getFuzzyStr() {
+        return fuzzyStr;
+    }
+    
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+    
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        return "CachingFuzzyStr[" + fuzzyStr.getClass().getSimpleName()
+                + ", size=" + size() + "/" + maxSize
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+}
@@ -0,0 +1,161 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.PersonName;
+import org.dcm4che3.soundex.ESoundex;
+import org.dcm4che3.soundex.FuzzyStr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the fuzzy encoding of the patient, referring and performing
+ * physician names of a synthetic ingest corpus, with and without
+ * {@link CachingFuzzyStr}.
+ * <p>
+ * Family and given names are drawn from Zipf distributed pools, so few
+ * names are very frequent and many are rare, as in a real archive.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CachingFuzzyStrBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingFuzzyStrBenchmark.class);
+    
+    private static final int INSTANCES = 10000;
+    private static final int NAMES_PER_INSTANCE = 3;
+    
+    @Param({"false", "true"})
+    public boolean caching;
+    
+    @Param({"2000"})
+    public int familyNames;
+    
+    @Param({"500"})
+    public int givenNames;
+    
+    private FuzzyStr fuzzyStr;
+    private String[] corpus;
+    
+    @Setup
+    public void setup() {
+        fuzzyStr = ParamFactory.createStoreParam(caching).getFuzzyStr();
+        Random random = new Random(42);
+        String[] families = createNames(random, familyNames);
+        String[] givens = createNames(random, givenNames);
+        double[] familyCdf = zipfCdf(familyNames);
+        double[] givenCdf = zipfCdf(givenNames);
+        corpus = new String[INSTANCES * NAMES_PER_INSTANCE];
+        for (int i = 0; i < corpus.length; i++) {
+            corpus[i] = families[draw(random, familyCdf)]
+                    + '^' + givens[draw(random, givenCdf)];
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        if (fuzzyStr instanceof CachingFuzzyStr) {
+            LOG.info("{}, hit ratio {}", fuzzyStr, ((CachingFuzzyStr) fuzzyStr).getHitRatio());
+        }
+    }
+    
+    /**
+     * Encodes the name components of the corpus of one ingest pass.
+     */
+    @Benchmark
+    public void encodeNames(Blackhole blackhole) {
+        for (String name : corpus) {
+            PersonName pn = new PersonName(name, true);
+            blackhole.consume(fuzzyStr.toFuzzy(pn.get(PersonName.Component.FamilyName)));
+            blackhole.consume(fuzzyStr.toFuzzy(pn.get(PersonName.Component.GivenName)));
+        }
+    }
+    
+    private static String[] createNames(Random random, int count) {
+        String[] names = new String[count];
+        char[] name = new char[10];
+        for (int i = 0; i < count; i++) {
+            int length = 4 + random.nextInt(7);
+            name[0] = (char) ('A' + random.nextInt(26));
+            for (int j = 1; j < length; j++) {
+                name[j] = (char) ('a' + random.nextInt(26));
+            }
+            names[i] = new String(name, 0, length);
+        }
+        return names;
+    }
+    
+    private static double[] zipfCdf(int count) {
+        double[] cdf = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            cdf[i] = sum += 1.0 / (i + 1);
+        }
+        for (int i = 0; i < count; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+    
+    private static int draw(Random random, double[] cdf) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, cdf.length - 1);
+    }
+}
@@ -0,0 +1,108 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import org.dcm4che3.soundex.ESoundex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Verifies encodings, hit/miss counters and the bound of
+ * {@link CachingFuzzyStr}.
+ */
+public class CachingFuzzyStrTest {
+    
+    private static final String[] NAMES = {
+        "Doe", "Smith", "Doe", "Mueller", "Doe", "Smith", "Meyer"
+    };
+    
+    @Test
+    public void returnsEncodingsOfDecoratedFuzzyStr() {
+        ESoundex soundex = new ESoundex();
+        CachingFuzzyStr cached = new CachingFuzzyStr(soundex);
+        for (String name : NAMES) {
+            Assert.assertEquals(name, soundex.toFuzzy(name), cached.toFuzzy(name));
+        }
+        Assert.assertEquals(4, cached.getMisses());
+        Assert.assertEquals(3, cached.getHits());
+        Assert.assertEquals(4, cached.size());
+    }
+    
+    @Test
+    public void staysWithinMaxSize() {
+        CachingFuzzyStr cached = new CachingFuzzyStr(new ESoundex(), 2);
+        for (String name : NAMES) {
+            cached.toFuzzy(name);
+            Assert.assertTrue(cached.size() <= 2);
+        }
+    }
+    
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        CachingFuzzyStr cached = new CachingFuzzyStr(new ESoundex(), 2);
+        cached.toFuzzy("Smith");
+        cached.toFuzzy("Miller");
+        cached.toFuzzy("Smith");
+        cached.toFuzzy("Jones");
+        // Miller was evicted, Smith stayed cached
+        cached.toFuzzy("Smith");
+        Assert.assertEquals(2, cached.getHits());
+        cached.toFuzzy("Miller");
+        Assert.assertEquals(4, cached.getMisses());
+    }
+    
+    @Test
+    public void isSelectableByStoreParam() {
+        Assert.assertTrue(ParamFactory.createStoreParam(true).getFuzzyStr() instanceof CachingFuzzyStr);
+        Assert.assertTrue(ParamFactory.createStoreParam().getFuzzyStr() instanceof ESoundex);
+    }
+    
+    @Test
+    public void hitsAcrossStoreSessions() {
+        // one store parameter per store session
+        CachingFuzzyStr first = (CachingFuzzyStr) ParamFactory.createStoreParam(true).getFuzzyStr();
+        CachingFuzzyStr second = (CachingFuzzyStr) ParamFactory.createStoreParam(true).getFuzzyStr();
+        Assert.assertSame(first, second);
+        first.toFuzzy("Cross-session");
+        long hits = second.getHits();
+        second.toFuzzy("Cross-session");
+        Assert.assertEquals(hits + 1, second.getHits());
+    }
+}
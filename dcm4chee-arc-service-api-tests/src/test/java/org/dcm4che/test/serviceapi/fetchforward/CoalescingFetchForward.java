@@ -0,0 +1,235 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+
+/**
+ * Coalesces concurrent fetches of the same SOP instances.
+ * <p>
+ * The first caller requesting an instance fetches it; callers requesting
+ * the instance while that fetch is in flight attach to it instead of
+ * fetching it again. Attached callers are notified by their callback when
+ * the instance was fetched, with their own locator, and get it in their
+ * list of failed instances if the fetch failed.
+ */
+public class CoalescingFetchForward {
+    
+    private final class InFlight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final List<Waiter> waiters = new ArrayList<Waiter>();
+        private boolean completed;
+        
+        /**
+         * @return <code>false</code> if the fetch was already completed
+         */
+        synchronized boolean attach(Waiter waiter) {
+            if (completed) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+        
+        void complete(String iuid, boolean fetched, BasicCStoreSCUResp resp) {
+            List<Waiter> notify;
+            synchronized (this) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                notify = new ArrayList<Waiter>(waiters);
+            }
+            inFlight.remove(iuid, this);
+            for (Waiter waiter : notify) {
+                waiter.onCompleted(fetched, resp);
+            }
+            done.countDown();
+        }
+    }
+    
+    private static final class Waiter {
+        private final ArchiveInstanceLocator ref;
+        private final FetchForwardCallBack fetchCallBack;
+        private final List<ArchiveInstanceLocator> failed;
+        
+        Waiter(ArchiveInstanceLocator ref, FetchForwardCallBack fetchCallBack,
+                List<ArchiveInstanceLocator> failed) {
+            this.ref = ref;
+            this.fetchCallBack = fetchCallBack;
+            this.failed = failed;
+        }
+        
+        void onCompleted(boolean fetched, BasicCStoreSCUResp resp) {
+            if (fetched) {
+                fetchCallBack.onFetch(Collections.singletonList(ref), resp);
+            } else {
+                synchronized (failed) {
+                    failed.add(ref);
+                }
+            }
+        }
+    }
+    
+    private final FetchForwardService fetchForwardService;
+    private final ConcurrentMap<String, InFlight> inFlight = new ConcurrentHashMap<String, InFlight>();
+    private final AtomicInteger fetchedInstances = new AtomicInteger();
+    private final AtomicInteger coalescedInstances = new AtomicInteger();
+    
+    public CoalescingFetchForward(FetchForwardService fetchForwardService) {
+        this.fetchForwardService = fetchForwardService;
+    }
+    
+    /**
+     * Returns the number of instances passed to
+     * {@link FetchForwardService#fetchForward}.
+     */
+    public int getFetchedInstances() {
+        return fetchedInstances.get();
+    }
+    
+    /**
+     * Returns the number of requested instances served by the fetch of
+     * another caller.
+     */
+    public int getCoalescedInstances() {
+        return coalescedInstances.get();
+    }
+    
+    /**
+     * Returns the number of instances currently fetched.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+    
+    /**
+     * @return instances which could not be fetched
+     */
+    public List<ArchiveInstanceLocator> fetchForward(String aeTitle, List<ArchiveInstanceLocator> refs,
+            final FetchForwardCallBack fetchCallBack) throws Exception {
+        final List<ArchiveInstanceLocator> failed = new ArrayList<ArchiveInstanceLocator>();
+        final Map<String, InFlight> owned = new HashMap<String, InFlight>();
+        List<ArchiveInstanceLocator> toFetch = new ArrayList<ArchiveInstanceLocator>();
+        List<InFlight> attached = new ArrayList<InFlight>();
+        for (ArchiveInstanceLocator ref : refs) {
+            if (owned.containsKey(ref.iuid)) {
+                continue;
+            }
+            while (true) {
+                InFlight fetch = new InFlight();
+                InFlight prev = inFlight.putIfAbsent(ref.iuid, fetch);
+                if (prev == null) {
+                    owned.put(ref.iuid, fetch);
+                    toFetch.add(ref);
+                    break;
+                }
+                if (prev.attach(new Waiter(ref, fetchCallBack, failed))) {
+                    coalescedInstances.incrementAndGet();
+                    attached.add(prev);
+                    break;
+                }
+                // completed in between, removed from inFlight by now
+            }
+        }
+        
+        if (!toFetch.isEmpty()) {
+            fetchedInstances.addAndGet(toFetch.size());
+            FetchForwardCallBack coalescing = new FetchForwardCallBack() {
+                @Override
+                public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                        BasicCStoreSCUResp basicCStoreSCUresp) {
+                    fetchCallBack.onFetch(instances, basicCStoreSCUresp);
+                    for (ArchiveInstanceLocator instance : instances) {
+                        InFlight fetch = owned.get(instance.iuid);
+                        if (fetch != null) {
+                            fetch.complete(instance.iuid, true, basicCStoreSCUresp);
+                        }
+                    }
+                }
+            };
+            Set<String> failedIuids = new HashSet<String>();
+            try {
+                for (ArchiveInstanceLocator ref : 
+                        fetchForwardService.fetchForward(aeTitle, toFetch, coalescing, coalescing)) {
+                    failedIuids.add(ref.iuid);
+                }
+            } finally {
+                // instances neither reported as fetched nor as failed count as failed
+                for (ArchiveInstanceLocator ref : toFetch) {
+                    InFlight fetch = owned.get(ref.iuid);
+                    boolean completed;
+                    synchronized (fetch) {
+                        completed = fetch.completed;
+                    }
+                    if (!completed || failedIuids.contains(ref.iuid)) {
+                        synchronized (failed) {
+                            failed.add(ref);
+                        }
+                        fetch.complete(ref.iuid, false, null);
+                    }
+                }
+            }
+        }
+        
+        for (InFlight fetch : attached) {
+            fetch.done.await();
+        }
+        synchronized (failed) {
+            return new ArrayList<ArchiveInstanceLocator>(failed);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets concurrent callers fetch the same study through a
+ * {@link CoalescingFetchForward} and verifies that each instance is
+ * transferred from the external device only once, while every caller is
+ * notified about every instance.
+ * <p>
+ * Transfers are counted per SOP Instance UID on the archive side, by the
+ * C-STOREs the fetch forward service reports to its callbacks. The fetches
+ * are held until every caller has registered all instances, as owner of the
+ * fetch or attached to the fetch of another caller, so the number of
+ * coalesced instances does not depend on thread scheduling.
+ */
+@RunWith(Arquillian.class)
+public class CoalescingFetchForwardTest {
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingFetchForwardTest.class);
+    
+    static final int STUDY_SIZE = 50;
+    
+    static final int CALLERS = 8;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final String EXT_DEVICE = "extdcm";
+    
+    private static final int EXT_DEVICE_PORT = 11122;
+    
+    private static final long REGISTRATION_TIMEOUT_MILLIS = 10000;
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", STUDY_SIZE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(CoalescingFetchForwardTest.class);
+        war.addClass(CoalescingFetchForward.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void transfersEachInstanceOnce() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 0, STUDY_SIZE);
+        
+        ArchiveTestSupport.configureExtDevice(config, EXT_DEVICE, "DCMEXT", "localhost", EXT_DEVICE_PORT);
+        
+        // all callers fetching the study at once
+        ConcurrentMap<String, AtomicInteger> transfers = new ConcurrentHashMap<String, AtomicInteger>();
+        CountDownLatch registered = new CountDownLatch(1);
+        final CoalescingFetchForward coalescer =
+                new CoalescingFetchForward(countingTransfers(fetchForwardService, transfers, registered));
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final List<CountingCallBack> callBacks = new ArrayList<CountingCallBack>(CALLERS);
+        List<Callable<List<ArchiveInstanceLocator>>> tasks =
+                new ArrayList<Callable<List<ArchiveInstanceLocator>>>(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            final List<ArchiveInstanceLocator> refs = createLocators(template, 0);
+            final CountingCallBack callBack = new CountingCallBack();
+            callBacks.add(callBack);
+            tasks.add(new Callable<List<ArchiveInstanceLocator>>() {
+                @Override
+                public List<ArchiveInstanceLocator> call() throws Exception {
+                    startSignal.await();
+                    return coalescer.fetchForward("DCM4CHEE", refs, callBack);
+                }
+            });
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<List<ArchiveInstanceLocator>>> results =
+                    new ArrayList<Future<List<ArchiveInstanceLocator>>>(CALLERS);
+            for (Callable<List<ArchiveInstanceLocator>> task : tasks) {
+                results.add(executor.submit(task));
+            }
+            startSignal.countDown();
+            // nothing completes before the fetches are released, so every caller
+            // has registered once all instances are counted as fetched or coalesced
+            long timeout = System.currentTimeMillis() + REGISTRATION_TIMEOUT_MILLIS;
+            while (coalescer.getFetchedInstances() + coalescer.getCoalescedInstances() < CALLERS * STUDY_SIZE
+                    && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            registered.countDown();
+            for (Future<List<ArchiveInstanceLocator>> result : results) {
+                Assert.assertTrue(result.get().isEmpty());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        LOG.info("{} callers fetched {} instances: {} fetched, {} coalesced, {} C-STOREs received",
+                CALLERS, STUDY_SIZE, coalescer.getFetchedInstances(),
+                coalescer.getCoalescedInstances(), sum(transfers));
+        
+        Assert.assertEquals(STUDY_SIZE, coalescer.getFetchedInstances());
+        Assert.assertEquals((CALLERS - 1) * STUDY_SIZE, coalescer.getCoalescedInstances());
+        Assert.assertEquals(0, coalescer.getInFlight());
+        for (CountingCallBack callBack : callBacks) {
+            Assert.assertEquals(STUDY_SIZE, callBack.fetched.get());
+            Assert.assertEquals(STUDY_SIZE, callBack.iuids.size());
+        }
+        // each instance was transferred once, not once per caller
+        Assert.assertEquals(STUDY_SIZE, transfers.size());
+        for (Map.Entry<String, AtomicInteger> entry : transfers.entrySet()) {
+            Assert.assertEquals(entry.getKey(), 1, entry.getValue().get());
+        }
+    }
+    
+    private static List<ArchiveInstanceLocator> createLocators(Attributes template, int offset) {
+        return ArchiveTestSupport.createSyntheticLocators(template, offset, STUDY_SIZE,
+                new ExternalLocationTuple(EXT_DEVICE, Availability.NEARLINE));
+    }
+    
+    /*
+     * Decorates the fetch forward service, counting the instances it reports to the
+     * callbacks passed to fetchForward by SOP Instance UID. fetchForward waits for the
+     * registered latch before fetching.
+     */
+    private static FetchForwardService countingTransfers(final FetchForwardService fetchForwardService,
+            final ConcurrentMap<String, AtomicInteger> transfers, final CountDownLatch registered) {
+        return (FetchForwardService) Proxy.newProxyInstance(FetchForwardService.class.getClassLoader(),
+                new Class<?>[] { FetchForwardService.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (args != null && method.getName().equals("fetchForward")) {
+                            // the same callback may be passed for several parameters
+                            Map<Object, FetchForwardCallBack> counting =
+                                    new IdentityHashMap<Object, FetchForwardCallBack>();
+                            for (int i = 0; i < args.length; i++) {
+                                if (args[i] instanceof FetchForwardCallBack) {
+                                    FetchForwardCallBack callBack = counting.get(args[i]);
+                                    if (callBack == null) {
+                                        callBack = countingCallBack((FetchForwardCallBack) args[i], transfers);
+                                        counting.put(args[i], callBack);
+                                    }
+                                    args[i] = callBack;
+                                }
+                            }
+                            registered.await();
+                        }
+                        try {
+                            return method.invoke(fetchForwardService, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+    
+    private static FetchForwardCallBack countingCallBack(final FetchForwardCallBack fetchCallBack,
+            final ConcurrentMap<String, AtomicInteger> transfers) {
+        return new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                for (ArchiveInstanceLocator instance : instances) {
+                    AtomicInteger count = transfers.get(instance.iuid);
+                    if (count == null) {
+                        AtomicInteger prev = transfers.putIfAbsent(instance.iuid, count = new AtomicInteger());
+                        if (prev != null) {
+                            count = prev;
+                        }
+                    }
+                    count.incrementAndGet();
+                }
+                fetchCallBack.onFetch(instances, basicCStoreSCUresp);
+            }
+        };
+    }
+    
+    private static int sum(Map<String, AtomicInteger> transfers) {
+        int sum = 0;
+        for (AtomicInteger count : transfers.values()) {
+            sum += count.get();
+        }
+        return sum;
+    }
+    
+    private static final class CountingCallBack implements FetchForwardCallBack {
+        final AtomicInteger fetched = new AtomicInteger();
+        final ConcurrentMap<String, Boolean> iuids = new ConcurrentHashMap<String, Boolean>();
+        
+        @Override
+        public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                BasicCStoreSCUResp basicCStoreSCUresp) {
+            fetched.addAndGet(instances.size());
+            for (ArchiveInstanceLocator instance : instances) {
+                iuids.put(instance.iuid, Boolean.TRUE);
+            }
+        }
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
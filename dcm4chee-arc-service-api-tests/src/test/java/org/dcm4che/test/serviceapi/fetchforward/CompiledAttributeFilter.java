@@ -0,0 +1,159 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.VR;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.StoreParam;
+
+/**
+ * Compiled form of an {@link AttributeFilter} selection.
+ * <p>
+ * The selected tags are kept as sorted primitive array together with a
+ * bitmap over all 65536 group numbers. Attributes of groups without any
+ * selected tag are rejected by a single bit test; only the remaining ones
+ * are looked up by binary search. Selecting attributes does not allocate
+ * per visited tag.
+ */
+public class CompiledAttributeFilter {
+    
+    private final int[] tags;
+    private final long[] groups = new long[1024];
+    
+    public CompiledAttributeFilter(AttributeFilter filter) {
+        this(filter.getSelection());
+    }
+    
+    public CompiledAttributeFilter(int... selection) {
+        tags = selection.clone();
+        Arrays.sort(tags);
+        for (int tag : tags) {
+            int group = tag >>> 16;
+            groups[group >>> 6] |= 1L << group;
+        }
+    }
+    
+    /**
+     * Compiles the attribute filters of all entities configured in the
+     * specified store parameters.
+     */
+    public static Map<Entity, CompiledAttributeFilter> compile(StoreParam storeParam) {
+        Map<Entity, CompiledAttributeFilter> compiled =
+                new EnumMap<Entity, CompiledAttributeFilter>(Entity.class);
+        for (Entity entity : Entity.values()) {
+            AttributeFilter filter = storeParam.getAttributeFilter(entity);
+            if (filter != null) {
+                compiled.put(entity, new CompiledAttributeFilter(filter));
+            }
+        }
+        return compiled;
+    }
+    
+    public int[] getSelection() {
+        return tags.clone();
+    }
+    
+    public boolean containsGroup(int tag) {
+        int group = tag >>> 16;
+        return (groups[group >>> 6] & (1L << group)) != 0;
+    }
+    
+    public boolean contains(int tag) {
+        return containsGroup(tag) && Arrays.binarySearch(tags, tag) >= 0;
+    }
+    
+    /**
+     * Returns a new data set containing the selected attributes of the
+     * specified data set. Sequences and fragments are copied; other values
+     * are shared with <code>attrs</code>, as with
+     * {@link Attributes#Attributes(Attributes, int...)}.
+     */
+    public Attributes select(Attributes attrs) {
+        Selector selector = new Selector(new Attributes(attrs.bigEndian(), tags.length));
+        try {
+            attrs.accept(selector, false);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return selector.selected;
+    }
+    
+    private final class Selector implements Attributes.Visitor {
+        
+        final Attributes selected;
+        
+        Selector(Attributes selected) {
+            this.selected = selected;
+        }
+        
+        @Override
+        public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
+            if (!contains(tag)) {
+                return true;
+            }
+            if (value instanceof Sequence) {
+                Sequence src = (Sequence) value;
+                Sequence dst = selected.newSequence(tag, src.size());
+                for (Attributes item : src) {
+                    dst.add(new Attributes(item));
+                }
+            } else if (value instanceof Fragments) {
+                Fragments src = (Fragments) value;
+                Fragments dst = selected.newFragments(tag, vr, src.size());
+                for (Object fragment : src) {
+                    dst.add(fragment);
+                }
+            } else {
+                selected.setValue(tag, vr, value);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.StoreParam;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures splitting <code>DB700C26_original.xml</code> into the Patient,
+ * Study, Series and Instance attributes selected by the filters of
+ * {@link ParamFactory#createStoreParam()}, as done once per stored instance.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompiledAttributeFilterBenchmark {
+    
+    private static final Entity[] ENTITIES = {
+        Entity.Patient, Entity.Study, Entity.Series, Entity.Instance
+    };
+    
+    private Attributes attrs;
+    private AttributeFilter[] filters;
+    private CompiledAttributeFilter[] compiledFilters;
+    
+    @Setup
+    public void setup() throws Exception {
+        attrs = SAXReader.parse(CompiledAttributeFilterBenchmark.class.getClassLoader()
+                .getResource("testdata/DB700C26_original.xml").toString());
+        StoreParam storeParam = ParamFactory.createStoreParam();
+        Map<Entity, CompiledAttributeFilter> compiled = CompiledAttributeFilter.compile(storeParam);
+        filters = new AttributeFilter[ENTITIES.length];
+        compiledFilters = new CompiledAttributeFilter[ENTITIES.length];
+        for (int i = 0; i < ENTITIES.length; i++) {
+            filters[i] = storeParam.getAttributeFilter(ENTITIES[i]);
+            compiledFilters[i] = compiled.get(ENTITIES[i]);
+        }
+    }
+    
+    @Benchmark
+    public void attributeFilter(Blackhole blackhole) {
+        for (AttributeFilter filter : filters) {
+            blackhole.consume(new Attributes(attrs, filter.getSelection()));
+        }
+    }
+    
+    @Benchmark
+    public void compiledAttributeFilter(Blackhole blackhole) {
+        for (CompiledAttributeFilter filter : compiledFilters) {
+            blackhole.consume(filter.select(attrs));
+        }
+    }
+}
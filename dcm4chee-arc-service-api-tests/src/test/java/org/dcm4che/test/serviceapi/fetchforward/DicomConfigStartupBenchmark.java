@@ -0,0 +1,93 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.conf.dicom.DicomConfigurationBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the configuration part of the external device harness startup:
+ * parsing <code>defaultConfig.json</code> from a temporary copy for every
+ * lookup, as the harness used to do, versus parsing it once.
+ * <p>
+ * Each invocation performs the device lookups of
+ * <code>ExternalDeviceControl.setupExternalDevices</code>: two device starts
+ * and two seedings.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DicomConfigStartupBenchmark {
+    
+    private static final String[] LOOKUPS = { "dcmext", "dcmext2", "storescu", "storescu" };
+    
+    @Benchmark
+    public void parsePerLookupViaTempFile(Blackhole blackhole) throws Exception {
+        for (String deviceName : LOOKUPS) {
+            blackhole.consume(loadViaTempFile().findDevice(deviceName));
+        }
+    }
+    
+    @Benchmark
+    public void parseOnce(Blackhole blackhole) throws Exception {
+        DicomConfiguration dicomCfg = ExternalDeviceControl.loadDicomConfig();
+        for (String deviceName : LOOKUPS) {
+            blackhole.consume(dicomCfg.findDevice(deviceName));
+        }
+    }
+    
+    private static DicomConfiguration loadViaTempFile() throws Exception {
+        File localConfigFile = ExternalDeviceControl.copyDicomConfig();
+        return DicomConfigurationBuilder.newJsonConfigurationBuilder(localConfigFile.getPath()).build();
+    }
+}
@@ -0,0 +1,384 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TCP relay placed between the archive and an external device.
+ * <p>
+ * Each accepted connection carries exactly one DICOM association, so the
+ * connection counters of the proxy tell how many associations the archive
+ * opened to the external device and how many of them were open at the same
+ * time.
+ * <p>
+ * Data is relayed PDU by PDU, which allows to degrade the link according to
+ * a {@link LinkProfile}.
+ */
+public class DicomLinkProxy implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(DicomLinkProxy.class);
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private static final int PDU_HEADER_LENGTH = 6;
+    
+    private static final int P_DATA_TF = 0x04;
+    
+    private final ServerSocket serverSocket;
+    private final String remoteHost;
+    private final int remotePort;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger peakOpenConnections = new AtomicInteger();
+    private final AtomicInteger abortedConnections = new AtomicInteger();
+    private final AtomicLong relayedBytes = new AtomicLong();
+    
+    private final Pacer upstream = new Pacer();
+    private final Pacer downstream = new Pacer();
+    
+    private volatile LinkProfile profile = LinkProfile.LAN;
+    
+    private volatile boolean closed;
+    
+    public DicomLinkProxy(int localPort, String remoteHost, int remotePort) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(localPort));
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+    }
+    
+    public DicomLinkProxy start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+        LOG.info("Relaying connections from port {} to {}:{}", 
+                serverSocket.getLocalPort(), remoteHost, remotePort);
+        return this;
+    }
+    
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    public LinkProfile getLinkProfile() {
+        return profile;
+    }
+    
+    /**
+     * Sets the profile applied to the relayed PDUs, in both directions.
+     * Applies to PDUs relayed after the call, also of open connections.
+     */
+    public DicomLinkProxy setLinkProfile(LinkProfile profile) {
+        if (profile == null) {
+            throw new NullPointerException("profile");
+        }
+        this.profile = profile;
+        return this;
+    }
+    
+    public long getPduDelayMillis() {
+        return profile.getPduDelayMillis();
+    }
+    
+    /**
+     * Sets the delay applied before relaying each PDU, in both directions.
+     */
+    public DicomLinkProxy setPduDelayMillis(long pduDelayMillis) {
+        return setLinkProfile(new LinkProfile.Builder("delay " + pduDelayMillis + "ms")
+                .pduDelayMillis(pduDelayMillis)
+                .build());
+    }
+    
+    public int getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+    
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+    
+    public int getPeakOpenConnections() {
+        return peakOpenConnections.get();
+    }
+    
+    /**
+     * Returns the number of connections aborted according to the abort
+     * probability of the link profile.
+     */
+    public int getAbortedConnections() {
+        return abortedConnections.get();
+    }
+    
+    /**
+     * Returns the number of bytes relayed in both directions.
+     */
+    public long getRelayedBytes() {
+        return relayedBytes.get();
+    }
+    
+    public void resetCounters() {
+        acceptedConnections.set(0);
+        relayedBytes.set(0);
+        abortedConnections.set(0);
+        peakOpenConnections.set(openConnections.get());
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        executor.shutdownNow();
+    }
+    
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                Socket local = serverSocket.accept();
+                Socket remote;
+                try {
+                    remote = new Socket(remoteHost, remotePort);
+                } catch (IOException e) {
+                    LOG.warn("Failed to connect to {}:{}", remoteHost, remotePort, e);
+                    closeQuietly(local);
+                    continue;
+                }
+                onConnectionOpened();
+                relay(local, remote);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.warn("Failed to accept connection", e);
+                }
+            }
+        }
+    }
+    
+    private void onConnectionOpened() {
+        acceptedConnections.incrementAndGet();
+        int open = openConnections.incrementAndGet();
+        int peak;
+        while (open > (peak = peakOpenConnections.get())
+                && !peakOpenConnections.compareAndSet(peak, open)) {
+            // retry
+        }
+    }
+    
+    private void relay(final Socket local, final Socket remote) throws IOException {
+        sockets.add(local);
+        sockets.add(remote);
+        final AtomicInteger activePumps = new AtomicInteger(2);
+        executor.execute(new Pump(local, remote, upstream, activePumps));
+        executor.execute(new Pump(remote, local, downstream, activePumps));
+    }
+    
+    private final class Pump implements Runnable {
+        private final Socket from;
+        private final Socket to;
+        private final Pacer pacer;
+        private final AtomicInteger activePumps;
+        
+        Pump(Socket from, Socket to, Pacer pacer, AtomicInteger activePumps) {
+            this.from = from;
+            this.to = to;
+            this.pacer = pacer;
+            this.activePumps = activePumps;
+        }
+        
+        @Override
+        public void run() {
+            boolean eof = false;
+            try {
+                DataInputStream in = new DataInputStream(from.getInputStream());
+                OutputStream out = to.getOutputStream();
+                byte[] header = new byte[PDU_HEADER_LENGTH];
+                byte[] buf = new byte[BUFFER_SIZE];
+                while (readPDUHeader(in, header)) {
+                    LinkProfile profile = DicomLinkProxy.this.profile;
+                    int length = pduLength(header);
+                    if ((header[0] & 0xff) == P_DATA_TF && abort(profile)) {
+                        abortedConnections.incrementAndGet();
+                        LOG.debug("Aborting relayed connection from {}", from.getRemoteSocketAddress());
+                        // not eof, so both connections are closed
+                        return;
+                    }
+                    delay(profile);
+                    pacer.pace(PDU_HEADER_LENGTH + length, profile.getBytesPerSecond());
+                    out.write(header);
+                    copy(in, out, length, buf);
+                    out.flush();
+                    relayedBytes.addAndGet(PDU_HEADER_LENGTH + length);
+                }
+                to.shutdownOutput();
+                eof = true;
+            } catch (SocketException e) {
+                // connection closed by peer or proxy
+            } catch (IOException e) {
+                LOG.debug("Relaying data failed", e);
+            } finally {
+                if (!eof) {
+                    // also terminates the pump of the opposite direction
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+                if (activePumps.decrementAndGet() == 0) {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                    sockets.remove(from);
+                    sockets.remove(to);
+                    openConnections.decrementAndGet();
+                }
+            }
+        }
+    }
+    
+    private static boolean abort(LinkProfile profile) {
+        double p = profile.getAbortProbability();
+        return p > 0 && ThreadLocalRandom.current().nextDouble() < p;
+    }
+    
+    private static void delay(LinkProfile profile) throws IOException {
+        long delay = profile.getPduDelayMillis();
+        long jitter = profile.getJitterMillis();
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        sleep(delay);
+    }
+    
+    private static void sleep(long millis) throws IOException {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+    
+    /*
+     * Paces the PDUs of all connections in one direction to the bandwidth of the link
+     * profile: each PDU is relayed not before the previous PDUs were transmitted.
+     */
+    private static final class Pacer {
+        private long busyUntil;
+        
+        void pace(int bytes, long bytesPerSecond) throws IOException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long transmitted;
+            synchronized (this) {
+                long start = Math.max(System.nanoTime(), busyUntil);
+                busyUntil = start + bytes * 1000000000L / bytesPerSecond;
+                transmitted = busyUntil;
+            }
+            sleep((transmitted - System.nanoTime()) / 1000000L);
+        }
+    }
+    
+    private static boolean readPDUHeader(DataInputStream in, byte[] header) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        header[0] = (byte) first;
+        in.readFully(header, 1, PDU_HEADER_LENGTH - 1);
+        return true;
+    }
+    
+    private static int pduLength(byte[] header) {
+        return ((header[2] & 0xff) << 24)
+                | ((header[3] & 0xff) << 16)
+                | ((header[4] & 0xff) << 8)
+                | (header[5] & 0xff);
+    }
+    
+    private static void copy(InputStream in, OutputStream out, int length, byte[] buf)
+            throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buf, 0, Math.min(remaining, buf.length));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            out.write(buf, 0, read);
+            remaining -= read;
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -39,12 +39,22 @@
 
 package org.dcm4che.test.serviceapi.fetchforward;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.dcm4che.test.common.TestToolFactory;
 import org.dcm4che.test.tool.externaldevice.BehavioralCStoreSCP;
@@ -56,6 +66,8 @@ import org.dcm4che.test.tool.externaldevice.ExternalDeviceToolConfig;
 import org.dcm4che3.conf.api.DicomConfiguration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.conf.dicom.DicomConfigurationBuilder;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.IncompatibleConnectionException;
@@ -65,6 +77,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Helper class to control configuring and starting external device used by tests.
+ * <p>
+ * Running external devices and the data sent to them are registered, so test
+ * classes of one suite can share them: starting a running device and sending
+ * data already sent to it are no-ops.
  * 
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
  */
@@ -74,24 +90,108 @@ public class ExternalDeviceControl {
     private static final String extDeviceName = "dcmext";
     private static final String extDeviceAeTitle = "DCMEXT";
     
+    private static final String secondExtDeviceName = "dcmext2";
+    private static final String secondExtDeviceAeTitle = "DCMEXT2";
+    private static final int secondExtDevicePort = 11132;
+    
+    private static final String thirdExtDeviceName = "dcmext3";
+    private static final String thirdExtDeviceAeTitle = "DCMEXT3";
+    private static final int thirdExtDevicePort = 11142;
+    
     private static final String archiveDeviceName = "DCM4CHEE";
     private static final String archiveDeviceAeTitle = "DCM4CHEE_FETCH";
     
-    private static ExternalDeviceTool runningExtDevice;
+    private static final String syntheticInstanceTemplate = "testdata/DB700C26_original.xml";
+    
+    private static final String dicomConfigResource = "defaultConfig.json";
+    
+    private static final int seedAssociations = 4;
+    private static final int seedMaxOpsInvoked = 16;
+    
+    private static DicomConfiguration dicomConfig;
+    
+    private static final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<String, Device>();
+    
+    private static final Map<String, ExternalDeviceTool> runningExtDevices =
+            new LinkedHashMap<String, ExternalDeviceTool>();
+    
+    /*
+     * Data sent to the running external devices: the number of synthetic instances by
+     * device name and the names of other data sets as <device name>/<data set>.
+     */
+    private static final Map<String, Integer> sentSyntheticInstances = new HashMap<String, Integer>();
+    private static final Set<String> sentDataSets = new HashSet<String>();
     
     public static void setupExternalDevice() throws Exception {
         startExternalDevice();
         sendDataToExternalDevice();
     }
     
+    public static void setupExternalDevice(int syntheticInstances) throws Exception {
+        startExternalDevice();
+        sendSyntheticDataToExternalDevice(syntheticInstances);
+    }
+    
+    /*
+     * Starts the external devices dcmext and dcmext2 and stores the same synthetic
+     * instances to both of them.
+     */
+    public static void setupExternalDevices(int syntheticInstances) throws Exception {
+        startExternalDevice(extDeviceName, extDeviceAeTitle);
+        startExternalDevice(secondExtDeviceName, secondExtDeviceAeTitle);
+        sendSyntheticDataToExternalDevice(extDeviceName, extDeviceAeTitle, syntheticInstances);
+        sendSyntheticDataToExternalDevice(secondExtDeviceName, secondExtDeviceAeTitle, syntheticInstances);
+    }
+    
+    /*
+     * Like setupExternalDevices(int), but dcmext2 sends the fetched instances to the
+     * specified peer device instead of the archive, e.g. DCM4CHEE_VIA_PROXY.
+     */
+    public static void setupExternalDevices(int syntheticInstances, String secondPeerDeviceName)
+            throws Exception {
+        startExternalDevice(extDeviceName, extDeviceAeTitle);
+        startExternalDevice(secondExtDeviceName, secondExtDeviceAeTitle, secondPeerDeviceName,
+                archiveDeviceAeTitle);
+        sendSyntheticDataToExternalDevice(extDeviceName, extDeviceAeTitle, syntheticInstances);
+        sendSyntheticDataToExternalDevice(secondExtDeviceName, secondExtDeviceAeTitle, syntheticInstances);
+    }
+    
+    /*
+     * Starts the external device dcmext with a peer device other than the archive, e.g.
+     * DCM4CHEE_VIA_PROXY, which reaches DCM4CHEE_FETCH through a proxy, and stores
+     * synthetic instances to it.
+     */
+    public static void setupExternalDevice(int syntheticInstances, String peerDeviceName) throws Exception {
+        startExternalDevice(extDeviceName, extDeviceAeTitle, peerDeviceName, archiveDeviceAeTitle);
+        sendSyntheticDataToExternalDevice(syntheticInstances);
+    }
+    
     public static void startExternalDevice() throws IOException, ConfigurationException {
-        LOG.info("Starting external device");
+        startExternalDevice(extDeviceName, extDeviceAeTitle);
+    }
+    
+    public static void startExternalDevice(String deviceName, String aeTitle)
+            throws IOException, ConfigurationException {
+        startExternalDevice(deviceName, aeTitle, archiveDeviceName, archiveDeviceAeTitle);
+    }
+    
+    /*
+     * Starts the external device with the specified peer instead of the archive, e.g. as
+     * destination of storage commitment results.
+     */
+    public static synchronized void startExternalDevice(String deviceName, String aeTitle,
+            String peerDeviceName, String peerAeTitle) throws IOException, ConfigurationException {
+        if (runningExtDevices.containsKey(deviceName)) {
+            LOG.info("External device {} already running", deviceName);
+            return;
+        }
+        LOG.info("Starting external device {}", deviceName);
         
         Path testStorageDir = Files.createTempDirectory("fetchForwardTest");
         DicomConfiguration dicomCfg = getDicomConfig();
         ExternalDeviceToolConfig extDeviceToolCfg = TestToolFactory.createExternalDeviceToolConfig(
-                dicomCfg, testStorageDir.toFile(), extDeviceName, extDeviceAeTitle,
-                archiveDeviceName, archiveDeviceAeTitle);
+                dicomCfg, testStorageDir.toFile(), deviceName, aeTitle,
+                peerDeviceName, peerAeTitle);
 
         BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
                 .qrSCPConfig(extDeviceToolCfg)
@@ -107,34 +207,209 @@ public class ExternalDeviceControl {
                 .stgCmtSCP(stgCmtSCP)
                 .build();
         extDevice.start();
-        runningExtDevice = extDevice;
+        runningExtDevices.put(deviceName, extDevice);
     }
     
-    public static void stopExternalDevice() {
-        LOG.info("Stopping external device");
-        
-        if(runningExtDevice != null) {
-          runningExtDevice.stop();
-      }
+    public static synchronized void stopExternalDevice() {
+        for (Map.Entry<String, ExternalDeviceTool> entry : runningExtDevices.entrySet()) {
+            LOG.info("Stopping external device {}", entry.getKey());
+            entry.getValue().stop();
+        }
+        runningExtDevices.clear();
+        sentSyntheticInstances.clear();
+        sentDataSets.clear();
     }
     
-    private static DicomConfiguration getDicomConfig() throws IOException, ConfigurationException {
-        File localConfigFile = Files.createTempFile("tempdefaultconfig", "json").toFile();
-        
-        Files.copy(FetchForwardServiceTest.class.getClassLoader()
-                .getResourceAsStream("defaultConfig.json"), 
-                localConfigFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        localConfigFile.deleteOnExit();
-        return DicomConfigurationBuilder.newJsonConfigurationBuilder(localConfigFile.getPath()).build();
+    /*
+     * Stops only the specified external device, leaving devices started by others running.
+     */
+    public static synchronized void stopExternalDevice(String deviceName) {
+        ExternalDeviceTool extDevice = runningExtDevices.remove(deviceName);
+        if (extDevice == null) {
+            return;
+        }
+        LOG.info("Stopping external device {}", deviceName);
+        extDevice.stop();
+        sentSyntheticInstances.remove(deviceName);
+        for (Iterator<String> iter = sentDataSets.iterator(); iter.hasNext();) {
+            if (iter.next().startsWith(deviceName + '/')) {
+                iter.remove();
+            }
+        }
     }
     
-    public static void sendDataToExternalDevice() throws ConfigurationException, IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
-        Device storeToolDevice = getDicomConfig().findDevice("storescu");
-        Connection storeToolConn = storeToolDevice.connectionWithEqualsRDN(new Connection("dicom", "0.0.0.0"));
-        
+    public static synchronized boolean isExternalDeviceRunning(String deviceName) {
+        return runningExtDevices.containsKey(deviceName);
+    }
+    
+    /*
+     * Returns the configuration parsed from defaultConfig.json. The configuration is parsed
+     * once and shared by all callers, which MUST treat it as read-only.
+     */
+    static synchronized DicomConfiguration getDicomConfig() throws IOException, ConfigurationException {
+        if (dicomConfig == null) {
+            long start = System.nanoTime();
+            dicomConfig = loadDicomConfig();
+            LOG.info("Loaded {} in {} ms", dicomConfigResource, (System.nanoTime() - start) / 1000000L);
+        }
+        return dicomConfig;
+    }
+    
+    /*
+     * Looks up the device on first use and caches it. Callers MUST NOT modify the device.
+     */
+    static Device findDevice(String deviceName) throws IOException, ConfigurationException {
+        Device device = devices.get(deviceName);
+        if (device == null) {
+            device = getDicomConfig().findDevice(deviceName);
+            Device prev = devices.putIfAbsent(deviceName, device);
+            if (prev != null) {
+                device = prev;
+            }
+        }
+        return device;
+    }
+    
+    /*
+     * Parses a temporary copy of defaultConfig.json, see copyDicomConfig().
+     */
+    static DicomConfiguration loadDicomConfig() throws IOException, ConfigurationException {
+        File configFile = copyDicomConfig();
+        return DicomConfigurationBuilder.newJsonConfigurationBuilder(configFile.getPath()).build();
+    }
+    
+    /*
+     * Copies defaultConfig.json from the test class path to a temporary file, so changes
+     * persisted by the configuration never modify the resource. The external devices
+     * dcmext2 and dcmext3 are added to the copy as derived from dcmext, from which they
+     * only differ in device name, AE title and port.
+     */
+    static File copyDicomConfig() throws IOException {
+        String json;
+        try (InputStream in = ExternalDeviceControl.class.getClassLoader()
+                .getResourceAsStream(dicomConfigResource)) {
+            json = new String(readAll(in), StandardCharsets.UTF_8);
+        }
+        String extDevice = deviceJson(json, extDeviceName);
+        int end = json.indexOf(extDevice) + extDevice.length();
+        json = json.substring(0, end)
+                + ",\n" + deriveExtDevice(extDevice, secondExtDeviceName, secondExtDeviceAeTitle,
+                        secondExtDevicePort)
+                + ",\n" + deriveExtDevice(extDevice, thirdExtDeviceName, thirdExtDeviceAeTitle,
+                        thirdExtDevicePort)
+                + json.substring(end);
+        Path configFile = Files.createTempFile("tempdefaultconfig", ".json");
+        Files.write(configFile, json.getBytes(StandardCharsets.UTF_8));
+        configFile.toFile().deleteOnExit();
+        return configFile.toFile();
+    }
+    
+    /*
+     * Returns the entry of the device in dicomDevicesRoot, from its name to the closing
+     * brace, which is the first one on the indentation level of the name.
+     */
+    private static String deviceJson(String json, String deviceName) throws IOException {
+        String indent = "\n      ";
+        int start = json.indexOf(indent + '"' + deviceName + "\" : {");
+        int end = json.indexOf(indent + '}', start + 1);
+        if (start < 0 || end < 0) {
+            throw new IOException("Device " + deviceName + " not found in " + dicomConfigResource);
+        }
+        return json.substring(start + 1, end + indent.length() + 1);
+    }
+    
+    private static String deriveExtDevice(String extDevice, String deviceName, String aeTitle, int port) {
+        return extDevice
+                .replace('"' + extDeviceName + '"', '"' + deviceName + '"')
+                .replace('\'' + extDeviceName + '\'', '\'' + deviceName + '\'')
+                .replace('"' + extDeviceAeTitle + '"', '"' + aeTitle + '"')
+                .replaceAll("\"dicomPort\" : \\d+", "\"dicomPort\" : " + port);
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+    
+    public static synchronized void sendDataToExternalDevice() throws ConfigurationException, IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+        String dataSet = extDeviceName + "/DB700C26_original.dcm";
+        if (sentDataSets.contains(dataSet)) {
+            LOG.info("Test instance already sent to external device {}", extDeviceName);
+            return;
+        }
         String userDir = System.getProperty("user.dir");
         File baseStoreToolDir = new File(userDir, "src/test/resources/testdata");
-        StoreTool storeScuTool = new StoreTool("localhost", 11122, "DCMEXT", baseStoreToolDir, storeToolDevice, "STORESCU", storeToolConn);
+        StoreTool storeScuTool = createStoreTool(baseStoreToolDir);
         storeScuTool.store("Store test instance to external device tool", "DB700C26_original.dcm");
+        if (runningExtDevices.containsKey(extDeviceName)) {
+            sentDataSets.add(dataSet);
+        }
+    }
+    
+    /*
+     * Stores instances derived by SyntheticInstances from the test instance header to the
+     * external device. The archive side derives the same UIDs from the same template.
+     * Only instances not already sent to the running device are stored.
+     */
+    public static void sendSyntheticDataToExternalDevice(int count) throws Exception {
+        sendSyntheticDataToExternalDevice(extDeviceName, extDeviceAeTitle, count);
+    }
+    
+    public static void sendSyntheticDataToExternalDevice(String deviceName, String aeTitle, int count)
+            throws Exception {
+        seedExternalDevice(deviceName, aeTitle, count, seedAssociations, seedMaxOpsInvoked);
+    }
+    
+    /*
+     * Like sendSyntheticDataToExternalDevice, but with the specified number of parallel
+     * associations and outstanding C-STORE requests per association. Returns the seeding
+     * rate in instances per second, or 0 if all instances were already sent.
+     */
+    public static synchronized double seedExternalDevice(String deviceName, String aeTitle, int count,
+            int associations, int maxOpsInvoked) throws Exception {
+        Integer sent = sentSyntheticInstances.get(deviceName);
+        int from = sent != null ? sent : 0;
+        if (count <= from) {
+            LOG.info("{} synthetic instances already sent to external device {}", from, deviceName);
+            return 0;
+        }
+        LOG.info("Sending {} synthetic instances to external device {}", count - from, deviceName);
+        
+        Attributes template = SAXReader.parse(ExternalDeviceControl.class.getClassLoader()
+                .getResource(syntheticInstanceTemplate).toString());
+        // BulkSeeder sets the executors of the device, so it must not be shared
+        Device seederDevice = getDicomConfig().findDevice("storescu");
+        int port = findDevice(deviceName).getConnections().get(0).getPort();
+        BulkSeeder.Result result = new BulkSeeder(seederDevice, "STORESCU", "localhost", port, aeTitle)
+                .setAssociations(associations)
+                .setMaxOpsInvoked(maxOpsInvoked)
+                .seed(template, from, count - from);
+        if (result.getFailed() > 0) {
+            throw new IOException("Failed to store " + result.getFailed() + " synthetic instances to "
+                    + deviceName + ": " + result);
+        }
+        LOG.info("Sent {} synthetic instances to external device {}: {}", count - from, deviceName, result);
+        if (runningExtDevices.containsKey(deviceName)) {
+            sentSyntheticInstances.put(deviceName, count);
+        }
+        return result.getInstancesPerSecond();
+    }
+    
+    private static StoreTool createStoreTool(File baseStoreToolDir) throws ConfigurationException, IOException {
+        return createStoreTool(baseStoreToolDir, extDeviceName, extDeviceAeTitle);
+    }
+    
+    private static StoreTool createStoreTool(File baseStoreToolDir, String deviceName, String aeTitle)
+            throws ConfigurationException, IOException {
+        // StoreTool takes over the device, so it must not be shared
+        Device storeToolDevice = getDicomConfig().findDevice("storescu");
+        Connection storeToolConn = storeToolDevice.connectionWithEqualsRDN(new Connection("dicom", "0.0.0.0"));
+        int port = findDevice(deviceName).getConnections().get(0).getPort();
+        return new StoreTool("localhost", port, aeTitle, baseStoreToolDir, storeToolDevice, "STORESCU", storeToolConn);
     }
 }
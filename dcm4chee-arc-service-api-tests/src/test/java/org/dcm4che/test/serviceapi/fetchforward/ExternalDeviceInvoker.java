@@ -0,0 +1,94 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls methods on the ExternalDeviceControl class using reflection.
+ * <p>
+ * Reflection is used because test classes MUST NOT have any dependencies on
+ * ExternalDeviceControl. If they had, the testing API (and everything related)
+ * would have to be added to the container deployment as the test classes are
+ * executed by Arquillian within the container.
+ */
+public class ExternalDeviceInvoker {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalDeviceInvoker.class);
+    
+    private static final String EXTERNAL_DEVICE_CONTROL =
+            "org.dcm4che.test.serviceapi.fetchforward.ExternalDeviceControl";
+    
+    private ExternalDeviceInvoker() {
+        // NOP
+    }
+    
+    /**
+     * Invokes the static method with the specified name. <code>Integer</code>
+     * and <code>Boolean</code> arguments are matched against parameters of the
+     * corresponding primitive type.
+     */
+    public static Object invoke(String name, Object... args) {
+        try {
+            Class<?> c = Class.forName(EXTERNAL_DEVICE_CONTROL);
+            Method extDeviceMethod = c.getDeclaredMethod(name, parameterTypes(args));
+            return extDeviceMethod.invoke(c, args);
+        } catch (Exception e) {
+            LOG.error("Error while executing external device method using reflection", e);
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static Class<?>[] parameterTypes(Object... args) {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            Class<?> type = args[i].getClass();
+            if (type == Integer.class) {
+                type = int.class;
+            } else if (type == Boolean.class) {
+                type = boolean.class;
+            }
+            types[i] = type;
+        }
+        return types;
+    }
+}
@@ -0,0 +1,239 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs <code>fetchForward</code> for one study per {@link LinkProfile},
+ * with both legs of the link degraded according to the profile: the archive
+ * reaches the external device through one {@link DicomLinkProxy} for the
+ * C-MOVE, and the external device sends the C-STORE sub-operations through
+ * another one, as its peer DCM4CHEE_VIA_PROXY points to the return proxy in
+ * front of DCM4CHEE_FETCH.
+ * <p>
+ * Instances not fetched are fetched again, up to {@link #MAX_RETRIES}
+ * times. For each profile the test logs the throughput, the number of
+ * retries and re-fetched instances and the number of opened and aborted
+ * associations. Profiles without aborts must not be faster than their
+ * bandwidth cap allows for the bytes relayed on the return leg.
+ * <p>
+ * Jitter and aborts are random, so the numbers vary between runs. Runs only
+ * with the <code>benchmark</code> profile.
+ */
+@RunWith(Arquillian.class)
+public class FetchForwardLinkProfileBenchmarkTest {
+    private static final Logger LOG = LoggerFactory.getLogger(FetchForwardLinkProfileBenchmarkTest.class);
+    
+    static final LinkProfile[] PROFILES = {
+        LinkProfile.LAN, LinkProfile.WAN, LinkProfile.SLOW_WAN, LinkProfile.LOSSY_WAN
+    };
+    
+    static final int STUDY_SIZE = 200;
+    
+    static final int MAX_RETRIES = 3;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int EXT_DEVICE_PORT = 11122;
+    
+    private static final int PROXY_PORT = 11123;
+    
+    private static final int ARCHIVE_PORT = 11112;
+    
+    private static final int RETURN_PROXY_PORT = 11124;
+    
+    private static final String PROXIED_ARCHIVE_DEVICE = "DCM4CHEE_VIA_PROXY";
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", PROFILES.length * STUDY_SIZE,
+                PROXIED_ARCHIVE_DEVICE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(FetchForwardLinkProfileBenchmarkTest.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void fetchForwardUnderLinkProfiles() throws Exception {
+        DicomLinkProxy proxy = new DicomLinkProxy(PROXY_PORT, "localhost", EXT_DEVICE_PORT).start();
+        DicomLinkProxy returnProxy = new DicomLinkProxy(RETURN_PROXY_PORT, "localhost", ARCHIVE_PORT).start();
+        try {
+            ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", PROXY_PORT);
+            Attributes template = load(INSTANCE_HEADER);
+            Map<LinkProfile, Long> elapsedByProfile = new HashMap<LinkProfile, Long>();
+            int offset = 0;
+            for (LinkProfile profile : PROFILES) {
+                long elapsed = fetchUnder(profile, proxy, returnProxy, template, offset);
+                elapsedByProfile.put(profile, elapsed);
+                if (profile.getAbortProbability() == 0 && profile.getBytesPerSecond() > 0) {
+                    // the payload direction alone carries at least half of the relayed bytes
+                    long minNanos = returnProxy.getRelayedBytes() / 2 * 1000000000L / profile.getBytesPerSecond();
+                    Assert.assertTrue(profile + " faster than its bandwidth cap: " + elapsed / 1000000L
+                            + " ms < " + minNanos / 1000000L + " ms", elapsed >= minNanos);
+                }
+                offset += STUDY_SIZE;
+            }
+            long lan = elapsedByProfile.get(LinkProfile.LAN);
+            long slowWan = elapsedByProfile.get(LinkProfile.SLOW_WAN);
+            LOG.info("SLOW_WAN took {} times as long as LAN", String.format("%.1f", (double) slowWan / lan));
+            Assert.assertTrue("SLOW_WAN not slower than LAN", slowWan > lan);
+        } finally {
+            returnProxy.close();
+            proxy.close();
+        }
+    }
+    
+    /*
+     * Returns the time to fetch the study, including retries.
+     */
+    private long fetchUnder(LinkProfile profile, DicomLinkProxy proxy, DicomLinkProxy returnProxy,
+            Attributes template, int offset) throws Exception {
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, offset, STUDY_SIZE);
+        List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                template, offset, STUDY_SIZE, new ExternalLocationTuple("extdcm", Availability.NEARLINE));
+        
+        final Set<String> fetched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                for (ArchiveInstanceLocator instance : instances) {
+                    fetched.add(instance.iuid);
+                }
+            }
+        };
+        
+        proxy.setLinkProfile(profile);
+        proxy.resetCounters();
+        returnProxy.setLinkProfile(profile);
+        returnProxy.resetCounters();
+        long start = System.nanoTime();
+        List<ArchiveInstanceLocator> failed = fetchForwardService.fetchForward(
+                "DCM4CHEE", refs, fetchCallBack, fetchCallBack);
+        long firstAttempt = System.nanoTime() - start;
+        int retries = 0;
+        int refetched = 0;
+        while (!failed.isEmpty() && retries < MAX_RETRIES) {
+            retries++;
+            refetched += failed.size();
+            failed = fetchForwardService.fetchForward("DCM4CHEE", failed, fetchCallBack, fetchCallBack);
+        }
+        long elapsed = System.nanoTime() - start;
+        proxy.setLinkProfile(LinkProfile.LAN);
+        returnProxy.setLinkProfile(LinkProfile.LAN);
+        
+        LOG.info("{}: fetched {} of {} instances in {} ms ({} instances/s, {} KB on the return leg), "
+                + "{} retries re-fetching {} instances took {} ms, {} + {} associations opened, {} + {} aborted",
+                profile, fetched.size(), STUDY_SIZE, elapsed / 1000000L,
+                String.format("%.1f", fetched.size() * 1e9 / elapsed),
+                returnProxy.getRelayedBytes() / 1024,
+                retries, refetched, (elapsed - firstAttempt) / 1000000L,
+                proxy.getAcceptedConnections(), returnProxy.getAcceptedConnections(),
+                proxy.getAbortedConnections(), returnProxy.getAbortedConnections());
+        
+        Assert.assertEquals(profile.toString(), 0, failed.size());
+        Assert.assertEquals(profile.toString(), STUDY_SIZE, fetched.size());
+        Assert.assertTrue(profile.toString(), returnProxy.getAcceptedConnections() > 0);
+        return elapsed;
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
@@ -0,0 +1,286 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches studies of increasing size with one <code>fetchForward</code> call
+ * each and reports throughput, the interval between <code>onFetch</code> calls
+ * and heap usage, so scaling regressions of the fetch-forward module show up
+ * as numbers. The heap figure is the sum of the peaks of the individual heap
+ * pools, which were not necessarily reached at the same time, so it is an
+ * upper bound of the actual peak.
+ * <p>
+ * The largest studies take minutes to fetch. Runs only with the
+ * <code>benchmark</code> profile.
+ * <p>
+ * The instances are derived from the test instance header by
+ * {@link SyntheticInstances}. Each study size uses its own range of instances.
+ */
+@RunWith(Arquillian.class)
+public class FetchForwardLoadBenchmarkTest {
+    private static final Logger LOG = LoggerFactory.getLogger(FetchForwardLoadBenchmarkTest.class);
+    
+    /*
+     * Number of instances fetched by one fetchForward call.
+     */
+    static final int[] STUDY_SIZES = { 100, 1000, 5000 };
+    
+    /*
+     * Number of instances fetched with a StreamingFetchCallBack.
+     */
+    static final int STREAMING_STUDY_SIZE = 5000;
+    
+    static final int STREAMING_BUFFER_SIZE = 64;
+    
+    private static final long LISTENER_HOLD_TIMEOUT_MILLIS = 60000;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", totalInstances());
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(FetchForwardLoadBenchmarkTest.class);
+        war.addClass(StreamingFetchCallBack.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    static int totalInstances() {
+        int total = STREAMING_STUDY_SIZE;
+        for (int size : STUDY_SIZES) {
+            total += size;
+        }
+        return total;
+    }
+    
+    @Test
+    public void fetchStudiesOfIncreasingSize() throws Exception {
+        ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", 11122);
+        
+        Attributes template = load(INSTANCE_HEADER);
+        int offset = 0;
+        for (int size : STUDY_SIZES) {
+            fetchStudy(template, offset, size);
+            offset += size;
+        }
+    }
+    
+    @Test
+    public void fetchStudyWithStreamingCallBack() throws Exception {
+        ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", 11122);
+        
+        Attributes template = load(INSTANCE_HEADER);
+        int offset = totalInstances() - STREAMING_STUDY_SIZE;
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, offset, STREAMING_STUDY_SIZE);
+        List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                template, offset, STREAMING_STUDY_SIZE, new ExternalLocationTuple("extdcm", Availability.NEARLINE));
+        final Set<String> expectedIuids = new HashSet<String>(STREAMING_STUDY_SIZE * 4 / 3 + 1);
+        for (ArchiveInstanceLocator ref : refs) {
+            expectedIuids.add(ref.iuid);
+        }
+        
+        final long start = System.nanoTime();
+        final AtomicLong firstInstance = new AtomicLong();
+        final AtomicReference<StreamingFetchCallBack> callBackRef = new AtomicReference<StreamingFetchCallBack>();
+        StreamingFetchCallBack fetchCallBack = new StreamingFetchCallBack(STREAMING_BUFFER_SIZE,
+                new StreamingFetchCallBack.InstanceListener() {
+                    @Override
+                    public void onInstanceFetched(ArchiveInstanceLocator instance, BasicCStoreSCUResp resp)
+                            throws InterruptedException {
+                        if (firstInstance.compareAndSet(0L, System.nanoTime() - start)) {
+                            // hold the buffer full until the fetching thread blocks
+                            long timeout = System.currentTimeMillis() + LISTENER_HOLD_TIMEOUT_MILLIS;
+                            while (callBackRef.get().getBlockedPuts() == 0
+                                    && System.currentTimeMillis() < timeout) {
+                                Thread.sleep(10);
+                            }
+                        }
+                        Assert.assertTrue("Unexpected or duplicate instance " + instance.iuid,
+                                expectedIuids.remove(instance.iuid));
+                    }
+                });
+        callBackRef.set(fetchCallBack);
+        List<ArchiveInstanceLocator> failedInstances;
+        Throwable primary = null;
+        try {
+            failedInstances = fetchForwardService.fetchForward("DCM4CHEE", refs, fetchCallBack, fetchCallBack);
+        } catch (Throwable e) {
+            primary = e;
+            throw e;
+        } finally {
+            fetchCallBack.finish(primary);
+        }
+        long elapsed = System.nanoTime() - start;
+        
+        LOG.info("Streamed {} instances in {} ms, first instance after {} ms, "
+                + "onFetch blocked {} times for {} ms on a buffer of {}",
+                fetchCallBack.getDelivered(), elapsed / 1000000L, firstInstance.get() / 1000000L,
+                fetchCallBack.getBlockedPuts(), fetchCallBack.getBlockedMillis(), fetchCallBack.getBufferSize());
+        
+        Assert.assertTrue(failedInstances.isEmpty());
+        Assert.assertEquals(STREAMING_STUDY_SIZE, fetchCallBack.getDelivered());
+        Assert.assertTrue(expectedIuids.isEmpty());
+        // the fetching thread waited for the listener holding the buffer full
+        Assert.assertTrue(fetchCallBack.getBlockedPuts() > 0);
+    }
+    
+    private void fetchStudy(Attributes template, int offset, int size) throws Exception {
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, offset, size);
+        List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                template, offset, size, new ExternalLocationTuple("extdcm", Availability.NEARLINE));
+        
+        final LatencyRecorder onFetchInterval = new LatencyRecorder();
+        final AtomicInteger fetched = new AtomicInteger();
+        final AtomicLong lastOnFetch = new AtomicLong();
+        FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                long now = System.nanoTime();
+                onFetchInterval.record(now - lastOnFetch.getAndSet(now));
+                fetched.addAndGet(instances.size());
+            }
+        };
+        
+        List<MemoryPoolMXBean> heapPools = heapPools();
+        System.gc();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+        
+        long start = System.nanoTime();
+        lastOnFetch.set(start);
+        List<ArchiveInstanceLocator> failedInstances = fetchForwardService.fetchForward("DCM4CHEE", refs, fetchCallBack, fetchCallBack);
+        long elapsed = System.nanoTime() - start;
+        
+        long peakHeapBound = 0L;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeapBound += pool.getPeakUsage().getUsed();
+        }
+        
+        LOG.info("Fetched {} instances in {} ms: {} instances/s, onFetch interval [{}], "
+                + "sum of heap pool peaks {} MB",
+                size, elapsed / 1000000L,
+                String.format("%.1f", size * 1e9 / elapsed),
+                onFetchInterval,
+                peakHeapBound >> 20);
+        
+        Assert.assertTrue(failedInstances.isEmpty());
+        Assert.assertEquals(size, fetched.get());
+    }
+    
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+            }
+        }
+        return heapPools;
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
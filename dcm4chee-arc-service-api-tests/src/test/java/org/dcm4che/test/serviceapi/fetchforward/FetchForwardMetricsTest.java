@@ -0,0 +1,180 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies the metrics recorded by {@link InstrumentedFetchForward} for a
+ * fetch of one study from the external device, reached through a
+ * {@link DicomLinkProxy}.
+ */
+@RunWith(Arquillian.class)
+public class FetchForwardMetricsTest {
+    private static final Logger LOG = LoggerFactory.getLogger(FetchForwardMetricsTest.class);
+    
+    static final int STUDY_SIZE = 20;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final String EXT_DEVICE = "extdcm";
+    
+    private static final int EXT_DEVICE_PORT = 11122;
+    
+    private static final int PROXY_PORT = 11123;
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", STUDY_SIZE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(FetchForwardMetricsTest.class);
+        war.addClass(MetricsRegistry.class);
+        war.addClass(SimpleMetricsRegistry.class);
+        war.addClass(InstrumentedFetchForward.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void recordsMetricsOfFetch() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 0, STUDY_SIZE);
+        List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                template, 0, STUDY_SIZE, new ExternalLocationTuple(EXT_DEVICE, Availability.NEARLINE));
+        
+        final AtomicInteger fetched = new AtomicInteger();
+        FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                fetched.addAndGet(instances.size());
+            }
+        };
+        
+        SimpleMetricsRegistry metrics = new SimpleMetricsRegistry();
+        InstrumentedFetchForward instrumented = new InstrumentedFetchForward(fetchForwardService, metrics);
+        instrumented.setMaxRetries(1);
+        DicomLinkProxy proxy = new DicomLinkProxy(PROXY_PORT, "localhost", EXT_DEVICE_PORT).start();
+        List<ArchiveInstanceLocator> failed;
+        try {
+            ArchiveTestSupport.configureExtDevice(config, EXT_DEVICE, "DCMEXT", "localhost", PROXY_PORT);
+            instrumented.monitorLink(EXT_DEVICE, proxy);
+            failed = instrumented.fetchForward("DCM4CHEE", refs, fetchCallBack);
+        } finally {
+            proxy.close();
+        }
+        LOG.info("Metrics after fetch of {} instances:\n{}", STUDY_SIZE, metrics);
+        
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(STUDY_SIZE, fetched.get());
+        Assert.assertEquals(STUDY_SIZE, metrics.getValue(metricName("requested")));
+        Assert.assertEquals(STUDY_SIZE, metrics.getValue(metricName("availability." + Availability.NEARLINE)));
+        Assert.assertEquals(STUDY_SIZE, metrics.getValue(metricName("fetched")));
+        Assert.assertEquals(-1, metrics.getValue(metricName("failed")));
+        Assert.assertEquals(-1, metrics.getValue(metricName("retries")));
+        Assert.assertEquals(0, metrics.getValue(InstrumentedFetchForward.IN_FLIGHT));
+        Assert.assertTrue(metrics.getValue(metricName("relayedBytes")) > 0);
+        Assert.assertTrue(metrics.getValue(metricName("relayedBytesPerSecond")) > 0);
+        LatencyRecorder latency = metrics.getHistogram(metricName("latency"));
+        Assert.assertEquals(1, latency.count());
+        Assert.assertTrue(latency.max() > 0);
+    }
+    
+    private static String metricName(String metric) {
+        return InstrumentedFetchForward.metricName(EXT_DEVICE, metric);
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
@@ -39,47 +39,33 @@
 
 package org.dcm4che.test.serviceapi.fetchforward;
 
-import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.EnumSet;
 import java.util.List;
 
 import javax.inject.Inject;
 
-import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterUnDeploy;
-import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeDeploy;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
 import org.dcm4che3.conf.api.DicomConfiguration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.io.SAXReader;
-import org.dcm4che3.net.ApplicationEntity;
-import org.dcm4che3.net.Connection;
-import org.dcm4che3.net.Connection.Protocol;
 import org.dcm4che3.net.Device;
-import org.dcm4che3.net.TCGroupConfigAEExtension;
-import org.dcm4che3.net.TCGroupConfigAEExtension.DefaultGroup;
 import org.dcm4che3.net.service.BasicCStoreSCUResp;
-import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.conf.StoreAction;
-import org.dcm4chee.archive.conf.StoreParam;
 import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
 import org.dcm4chee.archive.dto.ExternalLocationTuple;
-import org.dcm4chee.archive.dto.GenericParticipant;
 import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
 import org.dcm4chee.archive.fetch.forward.FetchForwardService;
 import org.dcm4chee.archive.store.StoreContext;
 import org.dcm4chee.archive.store.StoreService;
 import org.dcm4chee.archive.store.StoreSession;
 import org.dcm4chee.storage.conf.Availability;
-import org.dcm4chee.storage.conf.StorageSystem;
-import org.dcm4chee.storage.conf.StorageSystemGroup;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
-import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
 import org.junit.Assert;
 import org.junit.Test;
@@ -107,18 +93,16 @@ public class FetchForwardServiceTest {
     @Inject
     private Device device;
     
-    private static final String SOURCE_AET = "SOURCE_AET";
-    
     private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
     
     
-    @BeforeDeploy
-    public static void beforeDeploy() {
+    @BeforeSuite
+    public static void beforeSuite() {
         setupExternalDevice();
     }
     
-    @AfterUnDeploy
-    public static void afterUnDeploy() {
+    @AfterSuite
+    public static void afterSuite() {
         stopExternalDevice();
     }
     
@@ -126,12 +110,13 @@ public class FetchForwardServiceTest {
     public static WebArchive createDeployment() {
         WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
         war.addClass(FetchForwardServiceTest.class);
-        war.addClass(ParamFactory.class);
+        war.addClass(CompiledAttributeFilter.class);
+        war.addClass(FilteredSAXReader.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
         ITHelper.addDefaultDependenciesToWebArchive(war);
         war.addAsResource(INSTANCE_HEADER);
         
-        war.as(ZipExporter.class).exportTo(
-                new File("test.war"), true);
+        ITHelper.exportDeployment(war);
         return war;
     }
     
@@ -193,20 +178,7 @@ public class FetchForwardServiceTest {
     }
     
     private void storeInstanceToDB() throws Exception {
-        StoreParam storeParam = ParamFactory.createStoreParam();
-        StoreSession session = storeService.createStoreSession(storeService); 
-        session.setStoreParam(storeParam);
-        StorageSystem storageSystem = new StorageSystem();
-        storageSystem.setStorageSystemID("test_ss");        
-        StorageSystemGroup grp = new StorageSystemGroup();
-        grp.setGroupID("test_grp");
-        grp.addStorageSystem(storageSystem);
-        session.setStorageSystem(storageSystem);
-        session.setSource(new GenericParticipant("localhost", "testidentity"));
-        session.setRemoteAET(SOURCE_AET);
-        session.setArchiveAEExtension(device.getApplicationEntity("DCM4CHEE")
-                .getAEExtension(ArchiveAEExtension.class));
-
+        StoreSession session = ArchiveTestSupport.createStoreSession(storeService, device);
         StoreContext storeContext = storeService.createStoreContext(session);
         storeContext.setAttributes(load(INSTANCE_HEADER));
         storeContext.setStoreAction(StoreAction.UPDATEDB);
@@ -215,38 +187,11 @@ public class FetchForwardServiceTest {
     
     private static Attributes load(String name) throws Exception {
         ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        return SAXReader.parse(cl.getResource(name).toString());
+        return FilteredSAXReader.parse(cl.getResource(name).toString(), ParamFactory.createStoreParam());
     }
     
     private void configureExtDevice(String newDevice, String aet, String hostname, int port) throws ConfigurationException {
-        LOG.debug("Create Connection dicom");
-        Connection dicom = new Connection("dicom", hostname, port);
-        dicom.setProtocol(Protocol.DICOM);
-        dicom.setConnectionInstalled(true);
-        dicom.setTlsProtocols(new String[] { "TLSv1", "SSLv3" });
-        LOG.debug("Connection dicom:\n{}", dicom);
-
-        LOG.debug("Create ApplicationEntity {}", hostname);
-        ApplicationEntity applicationEntity = new ApplicationEntity(aet);
-        applicationEntity.setAssociationAcceptor(true);
-        applicationEntity.setAssociationInitiator(true);
-        List<Connection> listConnections = new ArrayList<Connection>();
-        listConnections.add(dicom);
-        applicationEntity.setConnections(listConnections);
-        EnumSet<DefaultGroup> scpGroups = EnumSet.of(DefaultGroup.QUERY, DefaultGroup.RETRIEVE, DefaultGroup.STORAGE,
-                DefaultGroup.STORAGE_COMMITMENT);
-        EnumSet<DefaultGroup> scuGroups = EnumSet.of(DefaultGroup.STORAGE, DefaultGroup.STORAGE_COMMITMENT);
-        TCGroupConfigAEExtension tCGroupConfigAEExtension = new TCGroupConfigAEExtension(scpGroups, scuGroups);
-        applicationEntity.addAEExtension(tCGroupConfigAEExtension);
-        LOG.debug("ApplicationEntity {}:\n{}", newDevice.toUpperCase(), applicationEntity);
-
-        LOG.debug("Create Device {}", newDevice);
-        Device extDevice = new Device(newDevice);
-        extDevice.addConnection(dicom);
-        extDevice.addApplicationEntity(applicationEntity);
-        LOG.debug("Device {}:\n{}", newDevice, extDevice);
-
-        config.merge(extDevice);
+        ArchiveTestSupport.configureExtDevice(config, newDevice, aet, hostname, port);
     }
    
 }
@@ -0,0 +1,261 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Issues concurrent <code>fetchForward</code> calls for different studies
+ * against the same external device.
+ * <p>
+ * The archive reaches the external device through a {@link DicomLinkProxy},
+ * which counts the C-MOVE associations opened by the fetch-forward service.
+ * The external device is configured with the peer device
+ * <code>DCM4CHEE_VIA_PROXY</code>, so the C-STORE associations carrying the
+ * instances back to the archive pass a second proxy and are counted as well.
+ * For each number of concurrent callers the test logs the aggregate
+ * throughput, the number of opened and of concurrently open associations on
+ * both legs and the time the calling threads spent blocked on monitors or
+ * waiting, which reveals whether concurrent fetches share associations or are
+ * serialized.
+ */
+@RunWith(Arquillian.class)
+public class FetchForwardStressTest {
+    private static final Logger LOG = LoggerFactory.getLogger(FetchForwardStressTest.class);
+    
+    static final int[] CONCURRENT_CALLERS = { 1, 4, 16, 32 };
+    
+    static final int INSTANCES_PER_CALLER = 50;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int EXT_DEVICE_PORT = 11122;
+    
+    private static final int PROXY_PORT = 11123;
+    
+    private static final int ARCHIVE_PORT = 11112;
+    
+    private static final int RETURN_PROXY_PORT = 11124;
+    
+    private static final String PROXIED_ARCHIVE_DEVICE = "DCM4CHEE_VIA_PROXY";
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", totalInstances(), PROXIED_ARCHIVE_DEVICE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(FetchForwardStressTest.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    static int totalInstances() {
+        int total = 0;
+        for (int callers : CONCURRENT_CALLERS) {
+            total += callers * INSTANCES_PER_CALLER;
+        }
+        return total;
+    }
+    
+    @Test
+    public void concurrentFetchForward() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean.isThreadContentionMonitoringSupported()) {
+            threadMXBean.setThreadContentionMonitoringEnabled(true);
+        }
+        
+        DicomLinkProxy proxy = new DicomLinkProxy(PROXY_PORT, "localhost", EXT_DEVICE_PORT).start();
+        DicomLinkProxy returnProxy = new DicomLinkProxy(RETURN_PROXY_PORT, "localhost", ARCHIVE_PORT).start();
+        try {
+            ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", PROXY_PORT);
+            Attributes template = load(INSTANCE_HEADER);
+            int offset = 0;
+            for (int callers : CONCURRENT_CALLERS) {
+                fetchConcurrently(template, offset, callers, proxy, returnProxy);
+                offset += callers * INSTANCES_PER_CALLER;
+            }
+        } finally {
+            returnProxy.close();
+            proxy.close();
+        }
+    }
+    
+    private void fetchConcurrently(Attributes template, int offset, int callers, DicomLinkProxy proxy,
+            DicomLinkProxy returnProxy) throws Exception {
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, offset,
+                callers * INSTANCES_PER_CALLER);
+        
+        final AtomicInteger fetched = new AtomicInteger();
+        final FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                fetched.addAndGet(instances.size());
+            }
+        };
+        final AtomicLong blockedMillis = new AtomicLong();
+        final AtomicLong waitedMillis = new AtomicLong();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        List<Callable<List<ArchiveInstanceLocator>>> tasks = new ArrayList<Callable<List<ArchiveInstanceLocator>>>(callers);
+        for (int i = 0; i < callers; i++) {
+            final List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                    template, offset + i * INSTANCES_PER_CALLER, INSTANCES_PER_CALLER,
+                    new ExternalLocationTuple("extdcm", Availability.NEARLINE));
+            tasks.add(new Callable<List<ArchiveInstanceLocator>>() {
+                @Override
+                public List<ArchiveInstanceLocator> call() throws Exception {
+                    startSignal.await();
+                    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+                    long threadId = Thread.currentThread().getId();
+                    ThreadInfo before = threadMXBean.getThreadInfo(threadId);
+                    try {
+                        return fetchForwardService.fetchForward("DCM4CHEE", refs, fetchCallBack, fetchCallBack);
+                    } finally {
+                        ThreadInfo after = threadMXBean.getThreadInfo(threadId);
+                        blockedMillis.addAndGet(after.getBlockedTime() - before.getBlockedTime());
+                        waitedMillis.addAndGet(after.getWaitedTime() - before.getWaitedTime());
+                    }
+                }
+            });
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<List<ArchiveInstanceLocator>>> results = new ArrayList<Future<List<ArchiveInstanceLocator>>>(callers);
+            for (Callable<List<ArchiveInstanceLocator>> task : tasks) {
+                results.add(executor.submit(task));
+            }
+            proxy.resetCounters();
+            returnProxy.resetCounters();
+            long start = System.nanoTime();
+            startSignal.countDown();
+            int failed = 0;
+            for (Future<List<ArchiveInstanceLocator>> result : results) {
+                failed += result.get().size();
+            }
+            long elapsed = System.nanoTime() - start;
+            int total = callers * INSTANCES_PER_CALLER;
+            
+            LOG.info("{} concurrent callers fetched {} instances in {} ms: {} instances/s, "
+                    + "{} C-MOVE associations opened (max. {} concurrently), "
+                    + "{} C-STORE associations opened (max. {} concurrently), "
+                    + "callers blocked {} ms, waited {} ms ({} available processors)",
+                    callers, total, elapsed / 1000000L,
+                    String.format("%.1f", total * 1e9 / elapsed),
+                    proxy.getAcceptedConnections(), proxy.getPeakOpenConnections(),
+                    returnProxy.getAcceptedConnections(), returnProxy.getPeakOpenConnections(),
+                    blockedMillis.get(), waitedMillis.get(),
+                    Runtime.getRuntime().availableProcessors());
+            
+            Assert.assertEquals(0, failed);
+            Assert.assertEquals(total, fetched.get());
+            // the instances came back through the return proxy
+            Assert.assertTrue(returnProxy.getAcceptedConnections() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
@@ -0,0 +1,174 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.ContentHandlerAdapter;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.StoreParam;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the top-level attributes of a DICOM Native XML document, which are
+ * selected by a {@link CompiledAttributeFilter}.
+ * <p>
+ * Unlike {@link org.dcm4che3.io.SAXReader}, SAX events of non-selected
+ * top-level <code>DicomAttribute</code> elements - including all nested
+ * items - are dropped before they reach the {@link ContentHandlerAdapter},
+ * so their values are never materialized.
+ */
+public class FilteredSAXReader {
+    
+    private static final String DICOM_ATTRIBUTE = "DicomAttribute";
+    
+    /**
+     * Returns a filter selecting the union of the attributes of all entity
+     * filters of the specified store parameters.
+     */
+    public static CompiledAttributeFilter filterOf(StoreParam storeParam) {
+        int[] union = new int[0];
+        for (Entity entity : Entity.values()) {
+            AttributeFilter filter = storeParam.getAttributeFilter(entity);
+            if (filter != null) {
+                int[] selection = filter.getSelection();
+                int offset = union.length;
+                union = Arrays.copyOf(union, offset + selection.length);
+                System.arraycopy(selection, 0, union, offset, selection.length);
+            }
+        }
+        return new CompiledAttributeFilter(union);
+    }
+    
+    public static Attributes parse(String uri, StoreParam storeParam)
+            throws ParserConfigurationException, SAXException, IOException {
+        return parse(uri, filterOf(storeParam));
+    }
+    
+    public static Attributes parse(String uri, CompiledAttributeFilter filter)
+            throws ParserConfigurationException, SAXException, IOException {
+        Attributes attrs = new Attributes();
+        parse(uri, filter, attrs);
+        return attrs;
+    }
+    
+    public static void parse(String uri, CompiledAttributeFilter filter, Attributes attrs)
+            throws ParserConfigurationException, SAXException, IOException {
+        SAXParserFactory.newInstance().newSAXParser().parse(uri,
+                new FilteringHandler(filter, new ContentHandlerAdapter(attrs)));
+    }
+    
+    private static final class FilteringHandler extends DefaultHandler {
+        
+        private final CompiledAttributeFilter filter;
+        private final ContentHandlerAdapter handler;
+        private int depth;
+        private int skipDepth;
+        
+        FilteringHandler(CompiledAttributeFilter filter, ContentHandlerAdapter handler) {
+            this.filter = filter;
+            this.handler = handler;
+        }
+        
+        @Override
+        public void startDocument() throws SAXException {
+            handler.startDocument();
+        }
+        
+        @Override
+        public void endDocument() throws SAXException {
+            handler.endDocument();
+        }
+        
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                org.xml.sax.Attributes atts) throws SAXException {
+            depth++;
+            if (skipDepth == 0 && depth == 2 && DICOM_ATTRIBUTE.equals(qName)
+                    && !filter.contains(parseTag(atts.getValue("tag")))) {
+                skipDepth = depth;
+            }
+            if (skipDepth == 0) {
+                handler.startElement(uri, localName, qName, atts);
+            }
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            if (skipDepth == 0) {
+                handler.endElement(uri, localName, qName);
+            } else if (skipDepth == depth) {
+                skipDepth = 0;
+            }
+            depth--;
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length)
+                throws SAXException {
+            if (skipDepth == 0) {
+                handler.characters(ch, start, length);
+            }
+        }
+        
+        private static int parseTag(String s) throws SAXException {
+            if (s == null || s.length() != 8) {
+                throw new SAXException("Invalid tag: " + s);
+            }
+            int tag = 0;
+            for (int i = 0; i < 8; i++) {
+                int digit = Character.digit(s.charAt(i), 16);
+                if (digit < 0) {
+                    throw new SAXException("Invalid tag: " + s);
+                }
+                tag = (tag << 4) | digit;
+            }
+            return tag;
+        }
+    }
+}
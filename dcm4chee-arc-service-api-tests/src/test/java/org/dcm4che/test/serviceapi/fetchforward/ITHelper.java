@@ -39,10 +39,22 @@
 
 package org.dcm4che.test.serviceapi.fetchforward;
 
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
@@ -50,20 +62,178 @@ import org.jboss.shrinkwrap.resolver.api.maven.Maven;
  */
 public class ITHelper {
     
+    private static final Logger LOG = LoggerFactory.getLogger(ITHelper.class);
+    
+    private static final String TEST_POM = "testpom.xml";
+    private static final String DEPLOYMENT_FILE = "test.war";
+    private static final String CACHE_DIR = "target/deployment-cache";
+    private static final String CACHE_COMPLETE = ".complete";
+    
+    /**
+     * System property to disable the deployment library cache.
+     */
+    public static final String DEPLOYMENT_CACHE_PROPERTY = "dcm4chee.test.deploymentCache";
+    
+    private static final FileFilter JAR_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isFile() && f.getName().endsWith(".jar");
+        }
+    };
+    
+    /*
+     * Libraries of testpom.xml, shared by all test classes of one test run.
+     */
+    private static File[] cachedLibraries;
+    
     private ITHelper() {
         // NOP
     }
     
+    /**
+     * Adds the helper classes shared by tests executed within the container.
+     * Classes used by a single test are added by the deployment of that test.
+     */
+    public static void addTestSupportClassesToWebArchive(WebArchive war) {
+        war.addClass(ArchiveTestSupport.class);
+        war.addClass(ParamFactory.class);
+        war.addClass(CachingFuzzyStr.class);
+        war.addClass(SyntheticInstances.class);
+        war.addClass(ExternalDeviceInvoker.class);
+        war.addClass(DicomLinkProxy.class);
+        war.addClass(LinkProfile.class);
+        war.addClass(LatencyRecorder.class);
+    }
+    
+    /**
+     * Adds the dependencies of testpom.xml as libraries, each with a
+     * <code>beans.xml</code>.
+     * <p>
+     * The libraries are resolved once per test run. Their copies with
+     * <code>beans.xml</code> are kept in
+     * <code>target/deployment-cache/&lt;key&gt;</code>, where the key is the
+     * SHA-1 of the file, size and modification time of each resolved artifact,
+     * so later test runs only add the cached files unless an artifact, e.g. a
+     * SNAPSHOT dependency, changed.
+     */
     public static void addDefaultDependenciesToWebArchive(WebArchive war) {
+        if (!Boolean.parseBoolean(System.getProperty(DEPLOYMENT_CACHE_PROPERTY, "true"))) {
+            war.addAsLibraries(resolveDefaultDependencies());
+            return;
+        }
+        try {
+            war.addAsLibraries(cachedDefaultDependencies());
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Deployment library cache not available, resolving " + TEST_POM, e);
+            war.addAsLibraries(resolveDefaultDependencies());
+        }
+    }
+    
+    /**
+     * Exports the deployment to <code>test.war</code>.
+     */
+    public static void exportDeployment(WebArchive war) {
+        long start = System.nanoTime();
+        File file = new File(DEPLOYMENT_FILE);
+        war.as(ZipExporter.class).exportTo(file, true);
+        LOG.info("Exported {} ({} KB) in {} ms", file, file.length() / 1024, millisSince(start));
+    }
+    
+    private static JavaArchive[] resolveDefaultDependencies() {
+        long start = System.nanoTime();
         JavaArchive[] archs =   Maven.resolver()
-                .loadPomFromFile("testpom.xml")
+                .loadPomFromFile(TEST_POM)
                 .importCompileAndRuntimeDependencies()
                 .resolve().withoutTransitivity()
                 .as(JavaArchive.class);
+        long resolved = System.nanoTime();
         for(JavaArchive a: archs) {
             a.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
-            war.addAsLibrary(a);
         }
+        LOG.info("Resolved {} libraries of {} in {} ms, added beans.xml in {} ms",
+                archs.length, TEST_POM, (resolved - start) / 1000000, millisSince(resolved));
+        return archs;
+    }
+    
+    private static synchronized File[] cachedDefaultDependencies() throws IOException {
+        if (cachedLibraries != null) {
+            return cachedLibraries;
+        }
+        
+        long start = System.nanoTime();
+        File[] artifacts = Maven.resolver()
+                .loadPomFromFile(TEST_POM)
+                .importCompileAndRuntimeDependencies()
+                .resolve().withoutTransitivity()
+                .asFile();
+        LOG.info("Resolved {} artifacts of {} in {} ms", artifacts.length, TEST_POM, millisSince(start));
+        File dir = new File(CACHE_DIR, keyOf(artifacts));
+        if (!new File(dir, CACHE_COMPLETE).exists()) {
+            long exportStart = System.nanoTime();
+            File tmp = new File(CACHE_DIR, dir.getName() + "-" + System.nanoTime());
+            if (!tmp.mkdirs()) {
+                throw new IOException("Failed to create " + tmp);
+            }
+            for (File artifact : artifacts) {
+                JavaArchive a = ShrinkWrap.createFromZipFile(JavaArchive.class, artifact);
+                a.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+                a.as(ZipExporter.class).exportTo(new File(tmp, artifact.getName()), true);
+            }
+            if (!new File(tmp, CACHE_COMPLETE).createNewFile()) {
+                throw new IOException("Failed to create " + CACHE_COMPLETE + " in " + tmp);
+            }
+            // another test run may have populated the cache concurrently
+            if (!tmp.renameTo(dir)) {
+                delete(tmp);
+            }
+            LOG.info("Wrote {} libraries to {} in {} ms", artifacts.length, dir, millisSince(exportStart));
+        }
+        
+        File[] libs = dir.listFiles(JAR_FILTER);
+        if (libs == null || !new File(dir, CACHE_COMPLETE).exists()) {
+            throw new IOException("Incomplete deployment library cache " + dir);
+        }
+        Arrays.sort(libs);
+        cachedLibraries = libs;
+        LOG.info("Using {} cached libraries of {} from {}, {} ms", libs.length, TEST_POM, dir, millisSince(start));
+        return libs;
+    }
+    
+    /*
+     * SHA-1 of testpom.xml and of the path, size and modification time of
+     * each resolved artifact.
+     */
+    private static String keyOf(File[] artifacts) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(Files.readAllBytes(new File(TEST_POM).toPath()));
+            for (File artifact : artifacts) {
+                digest.update((artifact.getAbsolutePath() + '|' + artifact.length()
+                        + '|' + artifact.lastModified() + '\n').getBytes("UTF-8"));
+            }
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                  .append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+    
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+    
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1000000;
     }
 
 }
@@ -0,0 +1,229 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+
+/**
+ * Decorates {@link FetchForwardService#fetchForward} with metrics recorded
+ * in a {@link MetricsRegistry}.
+ * <p>
+ * Instances are attributed to the retrieve device of their first external
+ * location. Per device <code>&lt;device&gt;</code> the following metrics are
+ * recorded:
+ * <ul>
+ * <li><code>fetchforward.&lt;device&gt;.latency</code> - histogram of the
+ * duration of the <code>fetchForward</code> calls including the device</li>
+ * <li><code>fetchforward.&lt;device&gt;.requested</code>,
+ * <code>.fetched</code>, <code>.failed</code> - instance counters</li>
+ * <li><code>fetchforward.&lt;device&gt;.retries</code> - counter of
+ * instances fetched again after a failed attempt</li>
+ * <li><code>fetchforward.&lt;device&gt;.availability.&lt;Availability&gt;</code>
+ * - counter of requested instances by availability of the location</li>
+ * <li><code>fetchforward.&lt;device&gt;.relayedBytes</code> and gauge
+ * <code>.relayedBytesPerSecond</code> of the last call - bytes relayed in
+ * both directions by a {@link DicomLinkProxy} passed to
+ * {@link #monitorLink(String, DicomLinkProxy)}. A proxy in front of the
+ * external device relays the C-MOVE association only, not the C-STORE
+ * sub-operations carrying the instances.</li>
+ * </ul>
+ * Gauge <code>fetchforward.inFlight</code> gives the number of requested
+ * instances neither fetched nor failed yet.
+ * <p>
+ * The time waiting for an association is not recorded: only
+ * {@link AssociationPool} records it, and <code>fetchForward</code> does not
+ * take its associations from a pool.
+ */
+public class InstrumentedFetchForward {
+    
+    public static final String PREFIX = "fetchforward.";
+    public static final String IN_FLIGHT = PREFIX + "inFlight";
+    
+    private static final String UNKNOWN_DEVICE = "unknown";
+    
+    private final FetchForwardService fetchForwardService;
+    private final MetricsRegistry metrics;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentMap<String, DicomLinkProxy> links = new ConcurrentHashMap<String, DicomLinkProxy>();
+    private final ConcurrentMap<String, AtomicLong> relayedBytesPerSecond =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private int maxRetries;
+    
+    public InstrumentedFetchForward(FetchForwardService fetchForwardService, MetricsRegistry metrics) {
+        this.fetchForwardService = fetchForwardService;
+        this.metrics = metrics;
+        metrics.gauge(IN_FLIGHT, new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return inFlight.get();
+            }
+        });
+    }
+    
+    public static String metricName(String deviceName, String metric) {
+        return PREFIX + deviceName + '.' + metric;
+    }
+    
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+    
+    /**
+     * Sets how often instances which failed are fetched again within one
+     * {@link #fetchForward} call.
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+    }
+    
+    /**
+     * Measures the bytes relayed by <code>proxy</code> during calls fetching
+     * from the specified device. The proxy must not be shared by concurrent
+     * calls.
+     */
+    public void monitorLink(String deviceName, DicomLinkProxy proxy) {
+        links.put(deviceName, proxy);
+        final AtomicLong rate = new AtomicLong();
+        relayedBytesPerSecond.put(deviceName, rate);
+        metrics.gauge(metricName(deviceName, "relayedBytesPerSecond"), new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return rate.get();
+            }
+        });
+    }
+    
+    /**
+     * @return instances which could not be fetched
+     */
+    public List<ArchiveInstanceLocator> fetchForward(String aeTitle, List<ArchiveInstanceLocator> refs,
+            final FetchForwardCallBack fetchCallBack) throws Exception {
+        final Map<String, String> deviceByIuid = new HashMap<String, String>(refs.size() * 4 / 3 + 1);
+        // neither fetched nor failed yet
+        final Set<String> outstanding = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>(refs.size() * 4 / 3 + 1));
+        Map<String, Long> bytesBefore = new HashMap<String, Long>();
+        for (ArchiveInstanceLocator ref : refs) {
+            String deviceName = UNKNOWN_DEVICE;
+            List<ExternalLocationTuple> locations = ref.getExternalLocators();
+            if (locations != null && !locations.isEmpty()) {
+                ExternalLocationTuple location = locations.get(0);
+                deviceName = location.getRetrieveDeviceName();
+                metrics.counter(metricName(deviceName, "availability." + location.getAvailability())).increment();
+            }
+            deviceByIuid.put(ref.iuid, deviceName);
+            outstanding.add(ref.iuid);
+            metrics.counter(metricName(deviceName, "requested")).increment();
+            DicomLinkProxy link = links.get(deviceName);
+            if (link != null && !bytesBefore.containsKey(deviceName)) {
+                bytesBefore.put(deviceName, link.getRelayedBytes());
+            }
+        }
+        
+        FetchForwardCallBack instrumented = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                for (ArchiveInstanceLocator instance : instances) {
+                    if (outstanding.remove(instance.iuid)) {
+                        metrics.counter(metricName(deviceOf(deviceByIuid, instance), "fetched")).increment();
+                        inFlight.decrementAndGet();
+                    }
+                }
+                fetchCallBack.onFetch(instances, basicCStoreSCUresp);
+            }
+        };
+        
+        inFlight.addAndGet(outstanding.size());
+        List<ArchiveInstanceLocator> failed;
+        long start = System.nanoTime();
+        try {
+            failed = fetchForwardService.fetchForward(aeTitle, refs, instrumented, instrumented);
+            for (int retry = 0; retry < maxRetries && !failed.isEmpty(); retry++) {
+                for (ArchiveInstanceLocator ref : failed) {
+                    metrics.counter(metricName(deviceOf(deviceByIuid, ref), "retries")).increment();
+                }
+                failed = fetchForwardService.fetchForward(aeTitle, failed, instrumented, instrumented);
+            }
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            // also if fetchForward threw, only instances not reported by onFetch count as failed
+            for (String iuid : outstanding.toArray(new String[0])) {
+                if (outstanding.remove(iuid)) {
+                    metrics.counter(metricName(deviceByIuid.get(iuid), "failed")).increment();
+                    inFlight.decrementAndGet();
+                }
+            }
+            for (String deviceName : new HashSet<String>(deviceByIuid.values())) {
+                metrics.histogram(metricName(deviceName, "latency")).record(elapsed);
+            }
+            for (Map.Entry<String, Long> entry : bytesBefore.entrySet()) {
+                long bytes = links.get(entry.getKey()).getRelayedBytes() - entry.getValue();
+                metrics.counter(metricName(entry.getKey(), "relayedBytes")).add(bytes);
+                relayedBytesPerSecond.get(entry.getKey()).set(elapsed > 0 ? bytes * 1000000000L / elapsed : 0);
+            }
+        }
+        return failed;
+    }
+    
+    private static String deviceOf(Map<String, String> deviceByIuid, ArchiveInstanceLocator instance) {
+        String deviceName = deviceByIuid.get(instance.iuid);
+        return deviceName != null ? deviceName : UNKNOWN_DEVICE;
+    }
+}
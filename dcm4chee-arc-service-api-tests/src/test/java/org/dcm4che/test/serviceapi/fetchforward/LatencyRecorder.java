@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records latency samples in nanoseconds and calculates simple statistics
+ * over them.
+ * <p>
+ * Count, total and maximum are exact. Percentiles are calculated over a
+ * uniform random sample of at most <code>reservoirSize</code> samples, so
+ * memory usage does not grow with the number of recorded samples.
+ */
+public class LatencyRecorder {
+
+    public static final int DEFAULT_RESERVOIR_SIZE = 4096;
+
+    private final long[] reservoir;
+    private final Random random = new Random();
+    private int count;
+    private long total;
+    private long max;
+
+    public LatencyRecorder() {
+        this(DEFAULT_RESERVOIR_SIZE);
+    }
+
+    public LatencyRecorder(int reservoirSize) {
+        if (reservoirSize <= 0) {
+            throw new IllegalArgumentException("reservoirSize: " + reservoirSize);
+        }
+        this.reservoir = new long[reservoirSize];
+    }
+
+    public synchronized void record(long nanos) {
+        if (count < reservoir.length) {
+            reservoir[count] = nanos;
+        } else {
+            // keeps each of the count + 1 samples with equal probability
+            int i = random.nextInt(count + 1);
+            if (i < reservoir.length) {
+                reservoir[i] = nanos;
+            }
+        }
+        count++;
+        total += nanos;
+        if (count == 1 || nanos > max) {
+            max = nanos;
+        }
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    public synchronized long total() {
+        return total;
+    }
+
+    public synchronized long mean() {
+        return count > 0 ? total / count : 0L;
+    }
+
+    /**
+     * Returns the sample value at the specified percentile (0 - 100) using the
+     * nearest-rank method. Exact as long as no more than
+     * <code>reservoirSize</code> samples were recorded.
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0L;
+        }
+        if (percentile >= 100) {
+            return max;
+        }
+        int n = Math.min(count, reservoir.length);
+        long[] sorted = Arrays.copyOf(reservoir, n);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * n);
+        return sorted[Math.max(0, Math.min(n, rank) - 1)];
+    }
+
+    public synchronized long max() {
+        return count > 0 ? max : 0L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + count
+                + ", mean=" + toMillis(mean())
+                + "ms, p50=" + toMillis(percentile(50))
+                + "ms, p99=" + toMillis(percentile(99))
+                + "ms, max=" + toMillis(max()) + "ms";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,166 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+/**
+ * Declarative performance profile of the link relayed by a
+ * {@link DicomLinkProxy}.
+ * <p>
+ * Each PDU is delayed by <code>pduDelayMillis</code> plus a random jitter
+ * of up to <code>jitterMillis</code>, and its transmission is paced to
+ * <code>bytesPerSecond</code>, shared by all connections of the proxy per
+ * direction. Each relayed P-DATA-TF PDU aborts its connection with
+ * <code>abortProbability</code>, as a dropped WAN link would.
+ */
+public final class LinkProfile {
+    
+    public static final LinkProfile LAN = new Builder("LAN").build();
+    
+    public static final LinkProfile WAN = new Builder("WAN")
+            .pduDelayMillis(20)
+            .jitterMillis(10)
+            .bytesPerSecond(10L * 1024 * 1024)
+            .build();
+    
+    public static final LinkProfile SLOW_WAN = new Builder("SLOW_WAN")
+            .pduDelayMillis(50)
+            .jitterMillis(25)
+            .bytesPerSecond(1024L * 1024)
+            .build();
+    
+    public static final LinkProfile LOSSY_WAN = new Builder("LOSSY_WAN")
+            .pduDelayMillis(20)
+            .jitterMillis(10)
+            .bytesPerSecond(10L * 1024 * 1024)
+            .abortProbability(0.002)
+            .build();
+    
+    private final String name;
+    private final long pduDelayMillis;
+    private final long jitterMillis;
+    private final long bytesPerSecond;
+    private final double abortProbability;
+    
+    private LinkProfile(Builder builder) {
+        this.name = builder.name;
+        this.pduDelayMillis = builder.pduDelayMillis;
+        this.jitterMillis = builder.jitterMillis;
+        this.bytesPerSecond = builder.bytesPerSecond;
+        this.abortProbability = builder.abortProbability;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public long getPduDelayMillis() {
+        return pduDelayMillis;
+    }
+    
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+    
+    /**
+     * @return bandwidth cap, 0 if unlimited
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+    
+    public double getAbortProbability() {
+        return abortProbability;
+    }
+    
+    @Override
+    public String toString() {
+        return name + "[delay=" + pduDelayMillis + "ms, jitter=" + jitterMillis
+                + "ms, bandwidth=" + (bytesPerSecond > 0 ? bytesPerSecond + "B/s" : "unlimited")
+                + ", abort=" + abortProbability + "]";
+    }
+    
+    public static class Builder {
+        private final String name;
+        private long pduDelayMillis;
+        private long jitterMillis;
+        private long bytesPerSecond;
+        private double abortProbability;
+        
+        public Builder(String name) {
+            this.name = name;
+        }
+        
+        public Builder pduDelayMillis(long pduDelayMillis) {
+            if (pduDelayMillis < 0) {
+                throw new IllegalArgumentException("pduDelayMillis: " + pduDelayMillis);
+            }
+            this.pduDelayMillis = pduDelayMillis;
+            return this;
+        }
+        
+        public Builder jitterMillis(long jitterMillis) {
+            if (jitterMillis < 0) {
+                throw new IllegalArgumentException("jitterMillis: " + jitterMillis);
+            }
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+        
+        public Builder bytesPerSecond(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("bytesPerSecond: " + bytesPerSecond);
+            }
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+        
+        public Builder abortProbability(double abortProbability) {
+            if (abortProbability < 0 || abortProbability > 1) {
+                throw new IllegalArgumentException("abortProbability: " + abortProbability);
+            }
+            this.abortProbability = abortProbability;
+            return this;
+        }
+        
+        public LinkProfile build() {
+            return new LinkProfile(this);
+        }
+    }
+}
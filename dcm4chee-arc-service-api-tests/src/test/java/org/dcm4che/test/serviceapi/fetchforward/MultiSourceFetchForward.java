@@ -0,0 +1,386 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.storage.conf.Availability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches instances available from several external devices from all of
+ * them in parallel.
+ * <p>
+ * There is one fetching worker per external device. The workers take chunks
+ * of {@link #getChunkSize()} instances from a shared pending list, so a faster
+ * device ends up fetching a larger share of the instances. A worker only takes
+ * an instance if its device has the best {@link Availability} of the
+ * locations of the instance not tried yet, so an instance is fetched from a
+ * NEARLINE location only if it is not available from an ONLINE location, or
+ * could not be fetched from there. Instances which could not be fetched from
+ * one device are put back to the pending list and fetched from their next
+ * location, without restarting the whole request.
+ * <p>
+ * The callback receives the locators passed by the caller. It is invoked
+ * concurrently by the workers and therefore has to be thread safe.
+ */
+public class MultiSourceFetchForward {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiSourceFetchForward.class);
+    
+    private static final Comparator<ExternalLocationTuple> BY_AVAILABILITY =
+            new Comparator<ExternalLocationTuple>() {
+                @Override
+                public int compare(ExternalLocationTuple o1, ExternalLocationTuple o2) {
+                    // Availability constants are declared from ONLINE to UNAVAILABLE
+                    return o1.getAvailability().compareTo(o2.getAvailability());
+                }
+            };
+    
+    private final FetchForwardService fetchForwardService;
+    private int chunkSize = 50;
+    private volatile Map<String, Integer> fetchedByDevice = Collections.emptyMap();
+    
+    public MultiSourceFetchForward(FetchForwardService fetchForwardService) {
+        this.fetchForwardService = fetchForwardService;
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Returns the number of instances fetched from each external device by
+     * the last completed {@link #fetchForward} call.
+     */
+    public Map<String, Integer> getFetchedByDevice() {
+        return fetchedByDevice;
+    }
+    
+    /**
+     * @return instances which could not be fetched from any of their locations
+     */
+    public List<ArchiveInstanceLocator> fetchForward(final String aeTitle,
+            List<ArchiveInstanceLocator> refs, final FetchForwardCallBack fetchCallBack) throws Exception {
+        final FetchState state = new FetchState(chunkSize);
+        Set<String> devices = state.init(refs);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, devices.size()));
+        try {
+            List<Future<?>> workers = new ArrayList<Future<?>>(devices.size());
+            for (final String deviceName : devices) {
+                workers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetchFrom(aeTitle, deviceName, state, fetchCallBack);
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        fetchedByDevice = state.getFetchedByDevice();
+        return state.getFailed();
+    }
+    
+    private void fetchFrom(String aeTitle, String deviceName, FetchState state,
+            FetchForwardCallBack fetchCallBack) {
+        List<PendingInstance> chunk;
+        while (!(chunk = state.takeChunk(deviceName)).isEmpty()) {
+            Map<String, PendingInstance> byIuid =
+                    new HashMap<String, PendingInstance>(chunk.size() * 4 / 3 + 1);
+            List<ArchiveInstanceLocator> refs = new ArrayList<ArchiveInstanceLocator>(chunk.size());
+            for (PendingInstance instance : chunk) {
+                byIuid.put(instance.ref.iuid, instance);
+                refs.add(instance.locatorFor(deviceName));
+            }
+            // instances of the chunk count as failed until reported by the callback
+            Set<PendingInstance> failedInstances = Collections.synchronizedSet(
+                    new HashSet<PendingInstance>(chunk));
+            FetchForwardCallBack reporting = new ReportingCallBack(fetchCallBack, byIuid, failedInstances);
+            try {
+                List<ArchiveInstanceLocator> notFetched =
+                        fetchForwardService.fetchForward(aeTitle, refs, reporting, reporting);
+                failedInstances.clear();
+                for (ArchiveInstanceLocator ref : notFetched) {
+                    failedInstances.add(byIuid.get(ref.iuid));
+                }
+            } catch (Exception e) {
+                LOG.warn("Failed to fetch {} of {} instances from {}",
+                        failedInstances.size(), chunk.size(), deviceName, e);
+            } finally {
+                // always release the chunk, so waiting workers do not block forever
+                state.completeChunk(deviceName, chunk, failedInstances);
+            }
+        }
+    }
+    
+    /*
+     * Passes the locators of the caller to the callback and records which
+     * instances of a chunk were fetched.
+     */
+    private static final class ReportingCallBack implements FetchForwardCallBack {
+        private final FetchForwardCallBack fetchCallBack;
+        private final Map<String, PendingInstance> byIuid;
+        private final Set<PendingInstance> failedInstances;
+        
+        ReportingCallBack(FetchForwardCallBack fetchCallBack, Map<String, PendingInstance> byIuid,
+                Set<PendingInstance> failedInstances) {
+            this.fetchCallBack = fetchCallBack;
+            this.byIuid = byIuid;
+            this.failedInstances = failedInstances;
+        }
+        
+        @Override
+        public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                BasicCStoreSCUResp basicCStoreSCUresp) {
+            List<ArchiveInstanceLocator> refs = new ArrayList<ArchiveInstanceLocator>(instances.size());
+            for (ArchiveInstanceLocator instance : instances) {
+                PendingInstance pending = byIuid.get(instance.iuid);
+                if (pending != null) {
+                    failedInstances.remove(pending);
+                    refs.add(pending.ref);
+                } else {
+                    refs.add(instance);
+                }
+            }
+            fetchCallBack.onFetch(refs, basicCStoreSCUresp);
+        }
+    }
+    
+    /*
+     * State of one fetchForward call, shared by its workers.
+     */
+    private static final class FetchState {
+        private final int chunkSize;
+        private final LinkedList<PendingInstance> pending = new LinkedList<PendingInstance>();
+        private final List<ArchiveInstanceLocator> failed = new ArrayList<ArchiveInstanceLocator>();
+        private final Map<String, Integer> fetchedByDevice = new LinkedHashMap<String, Integer>();
+        private int inProgress;
+        
+        FetchState(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+        
+        synchronized Set<String> init(List<ArchiveInstanceLocator> refs) {
+            Set<String> devices = new LinkedHashSet<String>();
+            for (ArchiveInstanceLocator ref : refs) {
+                PendingInstance instance = new PendingInstance(ref);
+                if (instance.locations.isEmpty()) {
+                    failed.add(ref);
+                    continue;
+                }
+                pending.add(instance);
+                for (ExternalLocationTuple location : instance.locations) {
+                    devices.add(location.getRetrieveDeviceName());
+                }
+            }
+            return devices;
+        }
+        
+        /*
+         * Takes up to chunkSize pending instances for which the specified device is
+         * the best location not yet tried. Waits while there are no such instances, but
+         * chunks of other workers are in progress or pending instances may still be
+         * fetched from this device after their better locations failed.
+         */
+        synchronized List<PendingInstance> takeChunk(String deviceName) {
+            while (true) {
+                List<PendingInstance> chunk = new ArrayList<PendingInstance>(chunkSize);
+                boolean laterFromHere = false;
+                for (Iterator<PendingInstance> iter = pending.iterator(); 
+                        iter.hasNext() && chunk.size() < chunkSize;) {
+                    PendingInstance instance = iter.next();
+                    if (instance.isBestLocation(deviceName)) {
+                        iter.remove();
+                        instance.tried.add(deviceName);
+                        chunk.add(instance);
+                    } else if (instance.canFetchFrom(deviceName)) {
+                        laterFromHere = true;
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    inProgress++;
+                    return chunk;
+                }
+                if (inProgress == 0 && !laterFromHere) {
+                    return chunk;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Collections.emptyList();
+                }
+            }
+        }
+        
+        synchronized void completeChunk(String deviceName, List<PendingInstance> chunk,
+                Set<PendingInstance> failedInstances) {
+            int fetched = 0;
+            for (PendingInstance instance : chunk) {
+                if (!failedInstances.contains(instance)) {
+                    fetched++;
+                } else if (instance.hasUntriedLocation()) {
+                    // fail over before fetching instances not tried yet
+                    pending.addFirst(instance);
+                } else {
+                    failed.add(instance.ref);
+                }
+            }
+            Integer prev = fetchedByDevice.get(deviceName);
+            fetchedByDevice.put(deviceName, prev == null ? fetched : prev + fetched);
+            inProgress--;
+            notifyAll();
+        }
+        
+        synchronized List<ArchiveInstanceLocator> getFailed() {
+            return new ArrayList<ArchiveInstanceLocator>(failed);
+        }
+        
+        synchronized Map<String, Integer> getFetchedByDevice() {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(fetchedByDevice));
+        }
+    }
+    
+    private static final class PendingInstance {
+        final ArchiveInstanceLocator ref;
+        final List<ExternalLocationTuple> locations;
+        final Set<String> tried = new HashSet<String>();
+        
+        PendingInstance(ArchiveInstanceLocator ref) {
+            this.ref = ref;
+            List<ExternalLocationTuple> extLocators = ref.getExternalLocators();
+            this.locations = extLocators != null
+                    ? new ArrayList<ExternalLocationTuple>(extLocators)
+                    : new ArrayList<ExternalLocationTuple>();
+            Collections.sort(locations, BY_AVAILABILITY);
+        }
+        
+        ExternalLocationTuple nextLocation() {
+            for (ExternalLocationTuple location : locations) {
+                if (!tried.contains(location.getRetrieveDeviceName())) {
+                    return location;
+                }
+            }
+            return null;
+        }
+        
+        boolean hasUntriedLocation() {
+            return nextLocation() != null;
+        }
+        
+        /*
+         * Returns true if the instance was not tried from the specified device yet and
+         * no untried location has a better availability.
+         */
+        boolean isBestLocation(String deviceName) {
+            ExternalLocationTuple next = nextLocation();
+            if (next == null) {
+                return false;
+            }
+            for (ExternalLocationTuple location : locations) {
+                int cmp = location.getAvailability().compareTo(next.getAvailability());
+                if (cmp > 0) {
+                    return false;
+                }
+                if (cmp == 0 && location.getRetrieveDeviceName().equals(deviceName)) {
+                    return !tried.contains(deviceName);
+                }
+            }
+            return false;
+        }
+        
+        boolean canFetchFrom(String deviceName) {
+            if (tried.contains(deviceName)) {
+                return false;
+            }
+            for (ExternalLocationTuple location : locations) {
+                if (location.getRetrieveDeviceName().equals(deviceName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        ArchiveInstanceLocator locatorFor(String deviceName) {
+            List<ExternalLocationTuple> location = new ArrayList<ExternalLocationTuple>(1);
+            for (ExternalLocationTuple tuple : locations) {
+                if (tuple.getRetrieveDeviceName().equals(deviceName)) {
+                    location.add(tuple);
+                    break;
+                }
+            }
+            return new ArchiveInstanceLocator.Builder(ref.cuid, ref.iuid, ref.tsuid)
+                    .externalLocators(location)
+                    .studyInstanceUID(ref.getStudyInstanceUID())
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches instances available from several external devices using
+ * {@link MultiSourceFetchForward}.
+ * <p>
+ * The external devices dcmext and dcmext2 hold the same instances. The archive
+ * reaches dcmext directly and dcmext2 through a {@link DicomLinkProxy}. dcmext2
+ * is started with the peer device <code>DCM4CHEE_VIA_PROXY</code>, so the
+ * C-STORE associations carrying the instances back to the archive pass a
+ * second proxy. For the comparison of one and two sources both proxies delay
+ * each PDU, which makes dcmext2 the slower source. A third location points to
+ * a port nobody listens on, to verify fail over.
+ */
+@RunWith(Arquillian.class)
+public class MultiSourceFetchForwardTest {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiSourceFetchForwardTest.class);
+    
+    static final int STUDY_SIZE = 300;
+    
+    static final long SLOW_PDU_DELAY_MILLIS = 2L;
+    
+    static final int CHUNK_SIZE = 10;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int SLOW_PROXY_PORT = 11133;
+    
+    private static final int ARCHIVE_PORT = 11112;
+    
+    private static final int RETURN_PROXY_PORT = 11124;
+    
+    private static final String PROXIED_ARCHIVE_DEVICE = "DCM4CHEE_VIA_PROXY";
+    
+    private static final int UNREACHABLE_PORT = 11199;
+    
+    private static final ExternalLocationTuple FAST_ONLINE =
+            new ExternalLocationTuple("extdcm", Availability.ONLINE);
+    
+    private static final ExternalLocationTuple SLOW_ONLINE =
+            new ExternalLocationTuple("extdcm2", Availability.ONLINE);
+    
+    private static final ExternalLocationTuple SLOW_NEARLINE =
+            new ExternalLocationTuple("extdcm2", Availability.NEARLINE);
+    
+    private static final ExternalLocationTuple UNREACHABLE_ONLINE =
+            new ExternalLocationTuple("extdcm_down", Availability.ONLINE);
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    private DicomLinkProxy slowLink;
+    
+    private DicomLinkProxy returnLink;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevices", 4 * STUDY_SIZE, PROXIED_ARCHIVE_DEVICE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(MultiSourceFetchForwardTest.class);
+        war.addClass(MultiSourceFetchForward.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Before
+    public void configureExtDevices() throws Exception {
+        ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", 11122);
+        ArchiveTestSupport.configureExtDevice(config, "extdcm2", "DCMEXT2", "localhost", SLOW_PROXY_PORT);
+        ArchiveTestSupport.configureExtDevice(config, "extdcm_down", "DCMEXT_DOWN", "localhost", UNREACHABLE_PORT);
+        slowLink = new DicomLinkProxy(SLOW_PROXY_PORT, "localhost", 11132).start();
+        returnLink = new DicomLinkProxy(RETURN_PROXY_PORT, "localhost", ARCHIVE_PORT).start();
+    }
+    
+    @After
+    public void closeLinks() {
+        if (returnLink != null) {
+            returnLink.close();
+        }
+        if (slowLink != null) {
+            slowLink.close();
+        }
+    }
+    
+    @Test
+    public void fetchFromParallelSources() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 0, 2 * STUDY_SIZE);
+        
+        slowLink.setPduDelayMillis(SLOW_PDU_DELAY_MILLIS);
+        returnLink.setPduDelayMillis(SLOW_PDU_DELAY_MILLIS);
+        // same chunking for both runs, so only the number of sources differs
+        MultiSourceFetchForward multiSource = new MultiSourceFetchForward(fetchForwardService);
+        multiSource.setChunkSize(CHUNK_SIZE);
+        CountingCallBack singleSourceCallBack = new CountingCallBack();
+        long start = System.nanoTime();
+        List<ArchiveInstanceLocator> failed = multiSource.fetchForward("DCM4CHEE",
+                ArchiveTestSupport.createSyntheticLocators(template, 0, STUDY_SIZE, FAST_ONLINE),
+                singleSourceCallBack);
+        long singleSource = System.nanoTime() - start;
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(STUDY_SIZE, singleSourceCallBack.fetched.get());
+        
+        CountingCallBack multiSourceCallBack = new CountingCallBack();
+        start = System.nanoTime();
+        failed = multiSource.fetchForward("DCM4CHEE",
+                ArchiveTestSupport.createSyntheticLocators(template, STUDY_SIZE, STUDY_SIZE,
+                        SLOW_ONLINE, FAST_ONLINE),
+                multiSourceCallBack);
+        long multiSources = System.nanoTime() - start;
+        Map<String, Integer> fetchedByDevice = multiSource.getFetchedByDevice();
+        
+        LOG.info("Fetched {} instances: single source {} instances/s, two sources {} instances/s {}",
+                STUDY_SIZE,
+                String.format("%.1f", STUDY_SIZE * 1e9 / singleSource),
+                String.format("%.1f", STUDY_SIZE * 1e9 / multiSources),
+                fetchedByDevice);
+        
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(STUDY_SIZE, multiSourceCallBack.fetched.get());
+        Assert.assertTrue(fetchedByDevice.get("extdcm") > 0);
+        Assert.assertTrue(fetchedByDevice.get("extdcm2") > 0);
+        Assert.assertTrue("two sources not faster than a single source", multiSources < singleSource);
+        // the instances of dcmext2 came back through the return proxy
+        Assert.assertTrue(returnLink.getAcceptedConnections() > 0);
+    }
+    
+    @Test
+    public void fetchFromBestAvailability() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 3 * STUDY_SIZE, STUDY_SIZE);
+        
+        MultiSourceFetchForward multiSource = new MultiSourceFetchForward(fetchForwardService);
+        CountingCallBack callBack = new CountingCallBack();
+        List<ArchiveInstanceLocator> failed = multiSource.fetchForward("DCM4CHEE",
+                ArchiveTestSupport.createSyntheticLocators(template, 3 * STUDY_SIZE, STUDY_SIZE,
+                        SLOW_NEARLINE, FAST_ONLINE),
+                callBack);
+        Map<String, Integer> fetchedByDevice = multiSource.getFetchedByDevice();
+        LOG.info("Fetched {} instances from ONLINE and NEARLINE locations: {}", STUDY_SIZE, fetchedByDevice);
+        
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(STUDY_SIZE, callBack.fetched.get());
+        Assert.assertEquals(Integer.valueOf(STUDY_SIZE), fetchedByDevice.get("extdcm"));
+        // the NEARLINE location is only used if the ONLINE location fails
+        Assert.assertNull(fetchedByDevice.get("extdcm2"));
+    }
+    
+    @Test
+    public void failOverToNextLocation() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 2 * STUDY_SIZE, STUDY_SIZE);
+        
+        MultiSourceFetchForward multiSource = new MultiSourceFetchForward(fetchForwardService);
+        CountingCallBack callBack = new CountingCallBack();
+        List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                template, 2 * STUDY_SIZE, STUDY_SIZE, SLOW_NEARLINE, UNREACHABLE_ONLINE);
+        List<ArchiveInstanceLocator> failed = multiSource.fetchForward("DCM4CHEE", refs, callBack);
+        Map<String, Integer> fetchedByDevice = multiSource.getFetchedByDevice();
+        LOG.info("Fetched {} instances with fail over: {}", STUDY_SIZE, fetchedByDevice);
+        
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(STUDY_SIZE, callBack.fetched.get());
+        Assert.assertEquals(Integer.valueOf(0), fetchedByDevice.get("extdcm_down"));
+        Assert.assertEquals(Integer.valueOf(STUDY_SIZE), fetchedByDevice.get("extdcm2"));
+        // the callback got the locators passed in, not the per device copies
+        Assert.assertTrue(callBack.received.containsAll(refs));
+    }
+    
+    private static final class CountingCallBack implements FetchForwardCallBack {
+        final AtomicInteger fetched = new AtomicInteger();
+        final Set<ArchiveInstanceLocator> received = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<ArchiveInstanceLocator, Boolean>()));
+        
+        @Override
+        public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                BasicCStoreSCUResp basicCStoreSCUresp) {
+            fetched.addAndGet(instances.size());
+            received.addAll(instances);
+        }
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
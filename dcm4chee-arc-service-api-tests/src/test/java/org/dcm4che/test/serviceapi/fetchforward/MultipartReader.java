@@ -0,0 +1,310 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes a <code>multipart/related</code> message body part by part while
+ * it is read from the input stream.
+ * <p>
+ * The content of a part is read from the stream returned by
+ * {@link Part#getInputStream()}, which ends at the next boundary delimiter.
+ * Only a buffer of fixed size is held in memory, independent of the size of
+ * the parts. Content not read by the caller is skipped by the next call of
+ * {@link #nextPart()}.
+ */
+public class MultipartReader {
+    
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    
+    private static final int MAX_HEADER_LINE_LENGTH = 8192;
+    
+    public static final class Part {
+        private final Map<String, String> headers;
+        private final InputStream in;
+        
+        Part(Map<String, String> headers, InputStream in) {
+            this.headers = headers;
+            this.in = in;
+        }
+        
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(headers);
+        }
+        
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+        
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+        
+        public String getContentLocation() {
+            return getHeader("Content-Location");
+        }
+        
+        /**
+         * Returns the content of the part. Closing the returned stream does
+         * not close the underlying stream.
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+    }
+    
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean closed;
+    private PartInputStream current;
+    
+    public MultipartReader(InputStream in, String boundary) {
+        this(in, boundary, DEFAULT_BUFFER_SIZE);
+    }
+    
+    public MultipartReader(InputStream in, String boundary, int bufferSize) {
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("boundary: " + boundary);
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.buf = new byte[Math.max(bufferSize, delimiter.length * 2)];
+        // the first delimiter is not preceded by CRLF unless there is a preamble
+        buf[limit++] = '\r';
+        buf[limit++] = '\n';
+        // skipped by the first call of nextPart()
+        current = new PartInputStream();
+    }
+    
+    /**
+     * Returns the value of the <code>boundary</code> parameter of the
+     * specified <code>Content-Type</code> or <code>null</code>.
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase("boundary")) {
+                String value = param.substring(eq + 1).trim();
+                return value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")
+                        ? value.substring(1, value.length() - 1)
+                        : value;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Skips the rest of the current part and returns the next part, or
+     * <code>null</code> after the closing boundary delimiter.
+     */
+    public Part nextPart() throws IOException {
+        if (closed) {
+            return null;
+        }
+        current.skipAll();
+        int b1 = readByte();
+        int b2 = readByte();
+        if (b1 == '-' && b2 == '-') {
+            closed = true;
+            return null;
+        }
+        // transport padding
+        while (b1 == ' ' || b1 == '\t') {
+            b1 = b2;
+            b2 = readByte();
+        }
+        if (b1 != '\r' || b2 != '\n') {
+            throw new IOException("Malformed multipart boundary line");
+        }
+        Map<String, String> headers = readHeaders();
+        current = new PartInputStream();
+        return new Part(headers, current);
+    }
+    
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Malformed multipart header: " + line);
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                    line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+    
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = readByte()) != '\n') {
+            if (sb.length() == MAX_HEADER_LINE_LENGTH) {
+                throw new IOException("Multipart header line exceeds " + MAX_HEADER_LINE_LENGTH + " bytes");
+            }
+            sb.append((char) b);
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == '\r') {
+            sb.setLength(len - 1);
+        }
+        return sb.toString();
+    }
+    
+    private int readByte() throws IOException {
+        if (pos == limit && !fill()) {
+            throw new EOFException("Unexpected end of multipart stream");
+        }
+        return buf[pos++] & 0xff;
+    }
+    
+    /*
+     * Moves the buffered bytes to the start of the buffer and reads more.
+     * Returns false at the end of the underlying stream.
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+    
+    private int indexOfDelimiter() {
+        next:
+        for (int i = pos, end = limit - delimiter.length; i <= end; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue next;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private final class PartInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+        private boolean ended;
+        
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int idx = indexOfDelimiter();
+                if (idx == pos) {
+                    pos += delimiter.length;
+                    ended = true;
+                    return -1;
+                }
+                // bytes at the end of the buffer may be the start of the delimiter
+                int available = (idx >= 0 ? idx : limit - delimiter.length + 1) - pos;
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                if (!fill()) {
+                    throw new EOFException("Missing multipart boundary delimiter");
+                }
+            }
+        }
+        
+        @Override
+        public int available() {
+            if (ended) {
+                return 0;
+            }
+            int idx = indexOfDelimiter();
+            return Math.max(0, (idx >= 0 ? idx : limit - delimiter.length + 1) - pos);
+        }
+        
+        @Override
+        public void close() {
+            // does not close the underlying stream
+        }
+        
+        void skipAll() throws IOException {
+            while (!ended) {
+                int idx = indexOfDelimiter();
+                if (idx >= 0) {
+                    pos = idx + delimiter.length;
+                    ended = true;
+                } else {
+                    pos = Math.max(pos, limit - delimiter.length + 1);
+                    if (!fill()) {
+                        throw new EOFException("Missing multipart boundary delimiter");
+                    }
+                }
+            }
+        }
+    }
+}
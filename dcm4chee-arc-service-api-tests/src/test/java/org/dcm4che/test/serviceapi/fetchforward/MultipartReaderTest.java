@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link MultipartReader} decodes parts spanning several
+ * buffer fills and parts not read by the caller.
+ */
+public class MultipartReaderTest {
+    
+    private static final String BOUNDARY = "0123456789abcdef";
+    
+    @Test
+    public void readsPartsLargerThanBuffer() throws Exception {
+        byte[] large = new byte[100000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 251);
+        }
+        byte[] body = multipart("preamble\r\n", large, "second".getBytes(StandardCharsets.US_ASCII));
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body), BOUNDARY, 64);
+        
+        MultipartReader.Part part = reader.nextPart();
+        Assert.assertEquals("application/octet-stream", part.getContentType());
+        Assert.assertEquals("/parts/0", part.getContentLocation());
+        Assert.assertArrayEquals(large, readAll(part.getInputStream()));
+        
+        part = reader.nextPart();
+        Assert.assertEquals("/parts/1", part.getHeader("content-location"));
+        Assert.assertEquals('s', part.getInputStream().read());
+        Assert.assertArrayEquals("econd".getBytes(StandardCharsets.US_ASCII), readAll(part.getInputStream()));
+        Assert.assertEquals(-1, part.getInputStream().read());
+        
+        Assert.assertNull(reader.nextPart());
+        Assert.assertNull(reader.nextPart());
+    }
+    
+    @Test
+    public void skipsUnreadParts() throws Exception {
+        byte[] partial = new byte[1000];
+        Arrays.fill(partial, (byte) '-');
+        byte[] body = multipart("", partial, new byte[0], "last".getBytes(StandardCharsets.US_ASCII));
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body), BOUNDARY, 64);
+        
+        reader.nextPart().getInputStream().read(new byte[10]);
+        Assert.assertEquals(0, readAll(reader.nextPart().getInputStream()).length);
+        MultipartReader.Part part = reader.nextPart();
+        Assert.assertEquals("/parts/2", part.getContentLocation());
+        Assert.assertArrayEquals("last".getBytes(StandardCharsets.US_ASCII), readAll(part.getInputStream()));
+        Assert.assertNull(reader.nextPart());
+    }
+    
+    @Test(expected = EOFException.class)
+    public void failsOnMissingClosingDelimiter() throws Exception {
+        byte[] body = multipart("", "truncated".getBytes(StandardCharsets.US_ASCII));
+        MultipartReader reader = new MultipartReader(
+                new ByteArrayInputStream(body, 0, body.length - BOUNDARY.length() - 8), BOUNDARY);
+        readAll(reader.nextPart().getInputStream());
+    }
+    
+    @Test
+    public void parsesBoundaryParameter() {
+        Assert.assertEquals(BOUNDARY, MultipartReader.boundaryOf(
+                "multipart/related; type=\"application/dicom\"; boundary=\"" + BOUNDARY + '"'));
+        Assert.assertEquals(BOUNDARY, MultipartReader.boundaryOf("multipart/related;boundary=" + BOUNDARY));
+        Assert.assertNull(MultipartReader.boundaryOf("application/dicom"));
+    }
+    
+    private static byte[] multipart(String preamble, byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(preamble.getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < parts.length; i++) {
+            out.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Location: /parts/" + i + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(parts[i]);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
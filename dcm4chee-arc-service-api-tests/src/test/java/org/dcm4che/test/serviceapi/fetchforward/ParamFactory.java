@@ -191,10 +191,26 @@ public abstract class ParamFactory {
         ATTR_FILTERS.put(Entity.Series, new AttributeFilter(SERIES_ATTRS));
     }
 
+    /*
+     * Shared by all store parameters, so encodings are reused across store sessions.
+     */
+    private static final CachingFuzzyStr CACHING_FUZZY_STR = new CachingFuzzyStr(new ESoundex());
+
     public static StoreParam createStoreParam() {
+        return createStoreParam(false);
+    }
+
+    /**
+     * @param cachingFuzzyStr memoize fuzzy name encodings in a
+     *        {@link CachingFuzzyStr} shared by all store parameters,
+     *        available by {@link StoreParam#getFuzzyStr()}
+     */
+    public static StoreParam createStoreParam(boolean cachingFuzzyStr) {
         StoreParam storeParam = new StoreParam();
         storeParam.setAttributeFilters(ATTR_FILTERS);
-        storeParam.setFuzzyStr(new ESoundex());
+        storeParam.setFuzzyStr(cachingFuzzyStr
+                ? CACHING_FUZZY_STR
+                : new ESoundex());
         return storeParam;
     }
 
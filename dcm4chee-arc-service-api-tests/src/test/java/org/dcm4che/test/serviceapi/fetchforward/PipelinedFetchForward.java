@@ -0,0 +1,157 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+
+/**
+ * Fetches instances from an external device and forwards them, overlapping
+ * both halves: an instance is forwarded as soon as it is fetched, while the
+ * remaining instances are still being fetched.
+ * <p>
+ * The instances are fetched in chunks of {@link #getChunkSize()} instances by
+ * the calling thread and passed to the forwarding thread through a
+ * {@link StreamingFetchCallBack} buffer of {@link #getInFlightWindow()}
+ * instances. If forwarding falls behind, fetching pauses until the window has
+ * space again. {@link #fetchThenForward} fetches in the same chunks, so both
+ * modes differ only in when the instances are forwarded.
+ */
+public class PipelinedFetchForward {
+    
+    public interface Forwarder {
+        void forward(ArchiveInstanceLocator instance) throws Exception;
+    }
+    
+    private final FetchForwardService fetchForwardService;
+    private int chunkSize = 100;
+    private int inFlightWindow = 200;
+    
+    public PipelinedFetchForward(FetchForwardService fetchForwardService) {
+        this.fetchForwardService = fetchForwardService;
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+    
+    public int getInFlightWindow() {
+        return inFlightWindow;
+    }
+    
+    public void setInFlightWindow(int inFlightWindow) {
+        if (inFlightWindow <= 0) {
+            throw new IllegalArgumentException("inFlightWindow: " + inFlightWindow);
+        }
+        this.inFlightWindow = inFlightWindow;
+    }
+    
+    /**
+     * Fetches all instances in chunks and forwards them after the last chunk
+     * was fetched.
+     * 
+     * @return instances which could not be fetched
+     */
+    public List<ArchiveInstanceLocator> fetchThenForward(String aeTitle, 
+            List<ArchiveInstanceLocator> refs, Forwarder forwarder) throws Exception {
+        final List<ArchiveInstanceLocator> fetched = new ArrayList<ArchiveInstanceLocator>(refs.size());
+        StreamingFetchCallBack collector = new StreamingFetchCallBack(inFlightWindow,
+                new StreamingFetchCallBack.InstanceListener() {
+                    @Override
+                    public void onInstanceFetched(ArchiveInstanceLocator instance, BasicCStoreSCUResp resp) {
+                        fetched.add(instance);
+                    }
+                });
+        List<ArchiveInstanceLocator> failed = fetchInChunks(aeTitle, refs, collector);
+        for (ArchiveInstanceLocator instance : fetched) {
+            forwarder.forward(instance);
+        }
+        return failed;
+    }
+    
+    /**
+     * Fetches the instances in chunks and forwards each instance as soon as it
+     * is fetched.
+     * 
+     * @return instances which could not be fetched
+     */
+    public List<ArchiveInstanceLocator> fetchAndForward(String aeTitle, 
+            List<ArchiveInstanceLocator> refs, final Forwarder forwarder) throws Exception {
+        StreamingFetchCallBack pipe = new StreamingFetchCallBack(inFlightWindow,
+                new StreamingFetchCallBack.InstanceListener() {
+                    @Override
+                    public void onInstanceFetched(ArchiveInstanceLocator instance, BasicCStoreSCUResp resp)
+                            throws Exception {
+                        forwarder.forward(instance);
+                    }
+                });
+        return fetchInChunks(aeTitle, refs, pipe);
+    }
+    
+    private List<ArchiveInstanceLocator> fetchInChunks(String aeTitle, 
+            List<ArchiveInstanceLocator> refs, StreamingFetchCallBack callBack) throws Exception {
+        List<ArchiveInstanceLocator> failed = new ArrayList<ArchiveInstanceLocator>();
+        Throwable primary = null;
+        try {
+            for (int from = 0, size = refs.size(); from < size; from += chunkSize) {
+                List<ArchiveInstanceLocator> chunk = new ArrayList<ArchiveInstanceLocator>(
+                        refs.subList(from, Math.min(size, from + chunkSize)));
+                failed.addAll(fetchForwardService.fetchForward(aeTitle, chunk, callBack, callBack));
+            }
+        } catch (Throwable e) {
+            primary = e;
+            throw e;
+        } finally {
+            callBack.finish(primary);
+        }
+        return failed;
+    }
+}
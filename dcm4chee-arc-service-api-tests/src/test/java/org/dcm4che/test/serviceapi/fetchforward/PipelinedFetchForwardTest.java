@@ -0,0 +1,304 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Priority;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.TransferCapability.Role;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the end-to-end time of sequential and pipelined fetch-then-forward
+ * of the same number of instances, using {@link PipelinedFetchForward}.
+ * <p>
+ * The instances are forwarded by C-STORE to a C-STORE SCP started by the
+ * test, which delays each response by {@link #FORWARD_DELAY_MILLIS} to
+ * simulate a slow peer.
+ */
+@RunWith(Arquillian.class)
+public class PipelinedFetchForwardTest {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelinedFetchForwardTest.class);
+    
+    static final int STUDY_SIZE = 500;
+    
+    static final long FORWARD_DELAY_MILLIS = 5L;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int FORWARD_SCP_PORT = 11162;
+    
+    private static final String FORWARD_SCP_AET = "FORWARDSCP";
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private DicomConfiguration config;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", 2 * STUDY_SIZE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(PipelinedFetchForwardTest.class);
+        war.addClass(StreamingFetchCallBack.class);
+        war.addClass(PipelinedFetchForward.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void pipelinedIsFasterThanSequential() throws Exception {
+        ArchiveTestSupport.configureExtDevice(config, "extdcm", "DCMEXT", "localhost", 11122);
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 0, 2 * STUDY_SIZE);
+        
+        PipelinedFetchForward fetchForward = new PipelinedFetchForward(fetchForwardService);
+        fetchForward.setChunkSize(50);
+        fetchForward.setInFlightWindow(100);
+        
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        Device forwardSCP = createForwardSCP(executor, scheduledExecutor);
+        long sequential;
+        long pipelined;
+        try {
+            ApplicationEntity scu = createStoreSCU(executor, scheduledExecutor);
+            
+            StoreForwarder sequentialForwarder = new StoreForwarder(scu, template);
+            long start = System.nanoTime();
+            List<ArchiveInstanceLocator> failed;
+            try {
+                failed = fetchForward.fetchThenForward("DCM4CHEE",
+                        createLocators(template, 0), sequentialForwarder);
+            } finally {
+                sequentialForwarder.close();
+            }
+            sequential = System.nanoTime() - start;
+            Assert.assertTrue(failed.isEmpty());
+            Assert.assertEquals(STUDY_SIZE, sequentialForwarder.forwarded.get());
+            
+            StoreForwarder pipelinedForwarder = new StoreForwarder(scu, template);
+            start = System.nanoTime();
+            try {
+                failed = fetchForward.fetchAndForward("DCM4CHEE",
+                        createLocators(template, STUDY_SIZE), pipelinedForwarder);
+            } finally {
+                pipelinedForwarder.close();
+            }
+            pipelined = System.nanoTime() - start;
+            Assert.assertTrue(failed.isEmpty());
+            Assert.assertEquals(STUDY_SIZE, pipelinedForwarder.forwarded.get());
+        } finally {
+            forwardSCP.unbindConnections();
+            executor.shutdown();
+            scheduledExecutor.shutdown();
+        }
+        
+        LOG.info("Fetched and forwarded {} instances: sequential {} ms, pipelined {} ms "
+                + "(chunk size {}, in-flight window {})",
+                STUDY_SIZE, sequential / 1000000L, pipelined / 1000000L,
+                fetchForward.getChunkSize(), fetchForward.getInFlightWindow());
+        Assert.assertTrue("pipelined " + pipelined + "ns >= sequential " + sequential + "ns",
+                pipelined < sequential);
+    }
+    
+    private static List<ArchiveInstanceLocator> createLocators(Attributes template, int offset) {
+        return ArchiveTestSupport.createSyntheticLocators(template, offset, STUDY_SIZE,
+                new ExternalLocationTuple("extdcm", Availability.NEARLINE));
+    }
+    
+    private static Device createForwardSCP(ExecutorService executor,
+            ScheduledExecutorService scheduledExecutor) throws Exception {
+        Device device = new Device("forwardscp");
+        Connection listener = new Connection("dicom", "localhost", FORWARD_SCP_PORT);
+        device.addConnection(listener);
+        ApplicationEntity ae = new ApplicationEntity(FORWARD_SCP_AET);
+        ae.addConnection(listener);
+        ae.addTransferCapability(new TransferCapability(null, "*", Role.SCP, "*"));
+        device.addApplicationEntity(ae);
+        DicomServiceRegistry services = new DicomServiceRegistry();
+        services.addDicomService(new DelayingStoreSCP());
+        device.setDimseRQHandler(services);
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        device.bindConnections();
+        return device;
+    }
+    
+    private static ApplicationEntity createStoreSCU(ExecutorService executor,
+            ScheduledExecutorService scheduledExecutor) {
+        Device device = new Device("forwardscu");
+        Connection conn = new Connection();
+        device.addConnection(conn);
+        ApplicationEntity ae = new ApplicationEntity("FORWARDSCU");
+        ae.addConnection(conn);
+        device.addApplicationEntity(ae);
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        return ae;
+    }
+    
+    /**
+     * Receives instances without storing them and responds after
+     * {@link #FORWARD_DELAY_MILLIS}.
+     */
+    private static final class DelayingStoreSCP extends BasicCStoreSCP {
+        DelayingStoreSCP() {
+            super("*");
+        }
+        
+        @Override
+        protected void store(Association as, PresentationContext pc, Attributes rq,
+                PDVInputStream data, Attributes rsp) throws IOException {
+            data.skipAll();
+            try {
+                TimeUnit.MILLISECONDS.sleep(FORWARD_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Sends each fetched instance, created from the template, over one
+     * association and waits for the C-STORE response before returning.
+     */
+    private static final class StoreForwarder implements PipelinedFetchForward.Forwarder {
+        final AtomicInteger forwarded = new AtomicInteger();
+        private final ApplicationEntity ae;
+        private final Attributes template;
+        private Association as;
+        
+        StoreForwarder(ApplicationEntity ae, Attributes template) {
+            this.ae = ae;
+            this.template = template;
+        }
+        
+        @Override
+        public void forward(ArchiveInstanceLocator instance) throws Exception {
+            if (as == null) {
+                AAssociateRQ rq = new AAssociateRQ();
+                rq.setCalledAET(FORWARD_SCP_AET);
+                rq.addPresentationContext(new PresentationContext(1, instance.cuid, UID.ExplicitVRLittleEndian));
+                as = ae.connect(new Connection("forward", "localhost", FORWARD_SCP_PORT), rq);
+            }
+            Attributes attrs = new Attributes(template);
+            attrs.setString(Tag.SOPInstanceUID, VR.UI, instance.iuid);
+            DimseRSP rsp = as.cstore(instance.cuid, instance.iuid, Priority.NORMAL,
+                    new DataWriterAdapter(attrs), UID.ExplicitVRLittleEndian);
+            rsp.next();
+            Assert.assertEquals(Status.Success, rsp.getCommand().getInt(Tag.Status, -1));
+            forwarded.incrementAndGet();
+        }
+        
+        void close() throws Exception {
+            if (as != null) {
+                as.release();
+            }
+        }
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
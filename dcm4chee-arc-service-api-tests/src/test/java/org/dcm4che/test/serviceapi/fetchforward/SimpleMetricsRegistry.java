@@ -0,0 +1,149 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MetricsRegistry} keeping the metrics in memory. Histograms are kept
+ * in {@link LatencyRecorder}s.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+    
+    private static final class SimpleCounter implements Counter {
+        final AtomicLong value = new AtomicLong();
+        
+        @Override
+        public void increment() {
+            value.incrementAndGet();
+        }
+        
+        @Override
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+    }
+    
+    private static final class SimpleHistogram implements Histogram {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        
+        @Override
+        public void record(long nanos) {
+            recorder.record(nanos);
+        }
+    }
+    
+    private final ConcurrentMap<String, SimpleCounter> counters = new ConcurrentHashMap<String, SimpleCounter>();
+    private final ConcurrentMap<String, SimpleHistogram> histograms = new ConcurrentHashMap<String, SimpleHistogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    
+    @Override
+    public Counter counter(String name) {
+        SimpleCounter counter = counters.get(name);
+        if (counter == null) {
+            SimpleCounter prev = counters.putIfAbsent(name, counter = new SimpleCounter());
+            if (prev != null) {
+                counter = prev;
+            }
+        }
+        return counter;
+    }
+    
+    @Override
+    public Histogram histogram(String name) {
+        SimpleHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            SimpleHistogram prev = histograms.putIfAbsent(name, histogram = new SimpleHistogram());
+            if (prev != null) {
+                histogram = prev;
+            }
+        }
+        return histogram;
+    }
+    
+    @Override
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    /**
+     * Returns the value of a counter or gauge, or -1 if there is none with
+     * the given name.
+     */
+    public long getValue(String name) {
+        SimpleCounter counter = counters.get(name);
+        if (counter != null) {
+            return counter.value.get();
+        }
+        Gauge gauge = gauges.get(name);
+        return gauge != null ? gauge.getValue() : -1;
+    }
+    
+    /**
+     * Returns the histogram with the given name, or <code>null</code>.
+     */
+    public LatencyRecorder getHistogram(String name) {
+        SimpleHistogram histogram = histograms.get(name);
+        return histogram != null ? histogram.recorder : null;
+    }
+    
+    @Override
+    public String toString() {
+        Map<String, Object> values = new TreeMap<String, Object>();
+        for (Map.Entry<String, SimpleCounter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value.get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        for (Map.Entry<String, SimpleHistogram> entry : histograms.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().recorder);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
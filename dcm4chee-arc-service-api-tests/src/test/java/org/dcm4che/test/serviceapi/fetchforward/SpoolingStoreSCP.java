@@ -0,0 +1,132 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * C-STORE SCP spooling received instances to files without decoding them.
+ * <p>
+ * The data set is copied from the PDV stream to a {@link FileChannel} as
+ * received, so the pixel data passes only the PDU buffer of the association
+ * and the direct buffer of the channel, and is never held in a heap
+ * <code>byte[]</code> per instance. Afterwards only the attributes preceding
+ * the pixel data are read back from the file and passed to the
+ * {@link Listener}, e.g. to create the <code>StoreContext</code>.
+ */
+public class SpoolingStoreSCP extends BasicCStoreSCP {
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolingStoreSCP.class);
+    
+    public interface Listener {
+        /**
+         * Called on the receiving thread of the association after the
+         * instance was spooled.
+         * 
+         * @param header attributes preceding the pixel data
+         */
+        void onSpooled(Association as, Path file, Attributes header) throws IOException;
+    }
+    
+    private final Path dir;
+    private final Listener listener;
+    
+    public SpoolingStoreSCP(Path dir, Listener listener) {
+        super("*");
+        this.dir = dir;
+        this.listener = listener;
+    }
+    
+    @Override
+    protected void store(Association as, PresentationContext pc, Attributes rq,
+            PDVInputStream data, Attributes rsp) throws IOException {
+        String cuid = rq.getString(Tag.AffectedSOPClassUID);
+        String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+        Attributes fmi = as.createFileMetaInformation(iuid, cuid, pc.getTransferSyntax());
+        Path tmp = dir.resolve(iuid + ".part");
+        Path file = dir.resolve(iuid);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
+                dos.writeFileMetaInformation(fmi);
+                dos.flush();
+                // not closed - that would close the channel before the data set is copied
+                data.copyTo(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            listener.onSpooled(as, file, readHeader(file));
+        } catch (Exception e) {
+            LOG.warn("{}: Failed to spool {}", as, iuid, e);
+            Files.deleteIfExists(tmp);
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        }
+    }
+    
+    /**
+     * Reads the attributes of the spooled file up to the pixel data.
+     */
+    public static Attributes readHeader(Path file) throws IOException {
+        try (DicomInputStream in = new DicomInputStream(file.toFile())) {
+            return in.readDataset(-1, Tag.PixelData);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRQHandler;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Priority;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.TransferCapability.Role;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives large synthetic multi-frame instances by {@link SpoolingStoreSCP}
+ * and by a C-STORE SCP decoding the data set before writing it, and
+ * compares the bytes allocated by the receiving thread and the throughput.
+ * Runs outside the container.
+ */
+public class SpoolingStoreSCPTest {
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolingStoreSCPTest.class);
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int PORT = 11152;
+    
+    private static final String SCP_AET = "SPOOLSCP";
+    
+    private static final int ROWS = 512;
+    
+    private static final int COLUMNS = 512;
+    
+    private static final int FRAMES = 32;
+    
+    private static final int PIXEL_DATA_LENGTH = ROWS * COLUMNS * FRAMES;
+    
+    static final int INSTANCES = 10;
+    
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong receiveNanos = new AtomicLong();
+    private final AtomicInteger received = new AtomicInteger();
+    
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private Path dir;
+    private Device scp;
+    private ApplicationEntity scu;
+    private Attributes template;
+    
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        dir = Files.createTempDirectory("spooling-store-scp-test");
+        template = createMultiFrameTemplate();
+        
+        scp = new Device("spoolscp");
+        Connection listener = new Connection("dicom", "localhost", PORT);
+        scp.addConnection(listener);
+        ApplicationEntity ae = new ApplicationEntity(SCP_AET);
+        ae.addConnection(listener);
+        ae.addTransferCapability(new TransferCapability(null, "*", Role.SCP, "*"));
+        scp.addApplicationEntity(ae);
+        scp.setExecutor(executor);
+        scp.setScheduledExecutor(scheduledExecutor);
+        
+        Device storescu = new Device("storescu");
+        Connection conn = new Connection();
+        storescu.addConnection(conn);
+        scu = new ApplicationEntity("STORESCU");
+        scu.addConnection(conn);
+        storescu.addApplicationEntity(scu);
+        storescu.setExecutor(executor);
+        storescu.setScheduledExecutor(scheduledExecutor);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        if (scp != null) {
+            scp.unbindConnections();
+        }
+        executor.shutdown();
+        scheduledExecutor.shutdown();
+        if (dir != null) {
+            StripedStorageTest.deleteTree(dir);
+        }
+    }
+    
+    @Test
+    public void spoolsWithoutCopyingPixelData() throws Exception {
+        final AtomicInteger headers = new AtomicInteger();
+        receive(new SpoolingStoreSCP(dir, new SpoolingStoreSCP.Listener() {
+            @Override
+            public void onSpooled(Association as, Path file, Attributes header) throws IOException {
+                Assert.assertFalse(header.contains(Tag.PixelData));
+                Assert.assertEquals(file.getFileName().toString(), header.getString(Tag.SOPInstanceUID));
+                Assert.assertTrue(Files.size(file) > PIXEL_DATA_LENGTH);
+                headers.incrementAndGet();
+            }
+        }), "spooling");
+        Assert.assertEquals(INSTANCES, headers.get());
+        Assert.assertTrue("allocated " + allocatedBytes.get() / INSTANCES + " bytes per instance",
+                allocatedBytes.get() / INSTANCES < PIXEL_DATA_LENGTH / 16);
+    }
+    
+    @Test
+    public void decodingAllocatesPixelData() throws Exception {
+        receive(new DecodingStoreSCP(dir), "decoding");
+        Assert.assertTrue(allocatedBytes.get() / INSTANCES >= PIXEL_DATA_LENGTH);
+    }
+    
+    private void receive(BasicCStoreSCP storeSCP, String name) throws Exception {
+        final DicomServiceRegistry services = new DicomServiceRegistry();
+        services.addDicomService(storeSCP);
+        // measures the bytes allocated by the receiving thread of the association
+        scp.setDimseRQHandler(new DimseRQHandler() {
+            @Override
+            public void onDimseRQ(Association as, PresentationContext pc, Dimse dimse,
+                    Attributes cmd, PDVInputStream data) throws IOException {
+                long threadId = Thread.currentThread().getId();
+                long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                services.onDimseRQ(as, pc, dimse, cmd, data);
+                receiveNanos.addAndGet(System.nanoTime() - start);
+                allocatedBytes.addAndGet(threadMXBean.getThreadAllocatedBytes(threadId) - allocated);
+                received.incrementAndGet();
+            }
+            
+            @Override
+            public void onClose(Association as) {
+                services.onClose(as);
+            }
+        });
+        scp.bindConnections();
+        
+        send();
+        
+        LOG.info("{} C-STORE SCP received {} instances of {} MB: {} MB/s, {} bytes allocated per instance",
+                name, received.get(), PIXEL_DATA_LENGTH >> 20,
+                String.format("%.1f", received.get() * (double) PIXEL_DATA_LENGTH * 1e3 / receiveNanos.get()),
+                allocatedBytes.get() / Math.max(1, received.get()));
+        Assert.assertEquals(INSTANCES, received.get());
+    }
+    
+    private void send() throws Exception {
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCalledAET(SCP_AET);
+        rq.addPresentationContext(new PresentationContext(1,
+                UID.MultiFrameGrayscaleByteSecondaryCaptureImageStorage, UID.ExplicitVRLittleEndian));
+        Association as = scu.connect(new Connection("spool", "localhost", PORT), rq);
+        final AtomicInteger failed = new AtomicInteger();
+        try {
+            for (int i = 0; i < INSTANCES; i++) {
+                Attributes attrs = SyntheticInstances.createInstance(template, i);
+                as.cstore(UID.MultiFrameGrayscaleByteSecondaryCaptureImageStorage,
+                        attrs.getString(Tag.SOPInstanceUID), Priority.NORMAL,
+                        new DataWriterAdapter(attrs), UID.ExplicitVRLittleEndian,
+                        new DimseRSPHandler(as.nextMessageID()) {
+                            @Override
+                            public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                                super.onDimseRSP(as, cmd, data);
+                                if (cmd.getInt(Tag.Status, -1) != Status.Success) {
+                                    failed.incrementAndGet();
+                                }
+                            }
+                        });
+            }
+            as.waitForOutstandingRSP();
+        } finally {
+            as.release();
+        }
+        Assert.assertEquals(0, failed.get());
+    }
+    
+    private static Attributes createMultiFrameTemplate() throws Exception {
+        Attributes attrs = SAXReader.parse(SpoolingStoreSCPTest.class.getClassLoader()
+                .getResource(INSTANCE_HEADER).toString());
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.MultiFrameGrayscaleByteSecondaryCaptureImageStorage);
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.Rows, VR.US, ROWS);
+        attrs.setInt(Tag.Columns, VR.US, COLUMNS);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 8);
+        attrs.setInt(Tag.BitsStored, VR.US, 8);
+        attrs.setInt(Tag.HighBit, VR.US, 7);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, FRAMES);
+        byte[] pixelData = new byte[PIXEL_DATA_LENGTH];
+        for (int i = 0; i < pixelData.length; i++) {
+            pixelData[i] = (byte) i;
+        }
+        // shared by all instances derived from the template
+        attrs.setBytes(Tag.PixelData, VR.OB, pixelData);
+        return attrs;
+    }
+    
+    /**
+     * Decodes the data set into memory before writing it to a file.
+     */
+    private static final class DecodingStoreSCP extends BasicCStoreSCP {
+        private final Path dir;
+        
+        DecodingStoreSCP(Path dir) {
+            super("*");
+            this.dir = dir;
+        }
+        
+        @Override
+        protected void store(Association as, PresentationContext pc, Attributes rq,
+                PDVInputStream data, Attributes rsp) throws IOException {
+            String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+            Attributes attrs = data.readDataset(pc.getTransferSyntax());
+            Attributes fmi = as.createFileMetaInformation(iuid,
+                    rq.getString(Tag.AffectedSOPClassUID), pc.getTransferSyntax());
+            try (DicomOutputStream out = new DicomOutputStream(dir.resolve(iuid).toFile())) {
+                out.writeDataset(fmi, attrs);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Requests storage commitment for instances forwarded to the external
+ * device <code>dcmext3</code>, once per instance and once in batches, using
+ * {@link StorageCommitmentBatcher}. Runs outside the container.
+ * <p>
+ * The external device sends its N-EVENT-REPORTs to <code>STGCMTSCU</code>,
+ * which the batcher listens as. For each batch size the test logs the
+ * number of N-ACTION requests, the time until all N-EVENT-REPORTs were
+ * received and the latency per transaction. Runs only with the
+ * <code>benchmark</code> profile.
+ */
+public class StorageCommitmentBatchBenchmarkTest {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(StorageCommitmentBatchBenchmarkTest.class);
+    
+    static final int INSTANCES = 10000;
+    
+    static final int PER_INSTANCE_BASELINE = 500;
+    
+    static final int BATCH_SIZE = 1000;
+    
+    private static final String EXT_DEVICE = "dcmext3";
+    
+    private static final String EXT_DEVICE_AET = "DCMEXT3";
+    
+    private static List<ArchiveInstanceLocator> forwarded;
+    
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        ExternalDeviceControl.startExternalDevice(EXT_DEVICE, EXT_DEVICE_AET, "stgcmtscu", "STGCMTSCU");
+        ExternalDeviceControl.sendSyntheticDataToExternalDevice(EXT_DEVICE, EXT_DEVICE_AET, INSTANCES);
+        Attributes template = SAXReader.parse(StorageCommitmentBatchBenchmarkTest.class.getClassLoader()
+                .getResource("testdata/DB700C26_original.xml").toString());
+        forwarded = ArchiveTestSupport.createSyntheticLocators(template, 0, INSTANCES);
+    }
+    
+    @AfterClass
+    public static void afterClass() {
+        ExternalDeviceControl.stopExternalDevice(EXT_DEVICE);
+    }
+    
+    @Test
+    public void commitPerInstance() throws Exception {
+        commit(forwarded.subList(0, PER_INSTANCE_BASELINE), 1);
+    }
+    
+    @Test
+    public void commitInBatches() throws Exception {
+        commit(forwarded, BATCH_SIZE);
+    }
+    
+    private void commit(List<ArchiveInstanceLocator> instances, int batchSize) throws Exception {
+        int port = ExternalDeviceControl.findDevice(EXT_DEVICE).getConnections().get(0).getPort();
+        StorageCommitmentBatcher batcher = new StorageCommitmentBatcher(
+                ExternalDeviceControl.getDicomConfig().findDevice("stgcmtscu"), "STGCMTSCU",
+                "localhost", port, EXT_DEVICE_AET, batchSize);
+        try {
+            long start = System.nanoTime();
+            List<StorageCommitmentBatcher.Transaction> transactions = batcher.commit(instances);
+            long requested = System.nanoTime() - start;
+            boolean completed = batcher.awaitCompletion(transactions, 5, TimeUnit.MINUTES);
+            long elapsed = System.nanoTime() - start;
+            
+            int committed = 0;
+            int failed = 0;
+            for (StorageCommitmentBatcher.Transaction tx : transactions) {
+                committed += tx.getCommitted();
+                failed += tx.getFailed();
+            }
+            LOG.info("Commitment of {} instances in batches of {}: {} N-ACTIONs sent in {} ms, "
+                    + "all N-EVENT-REPORTs received after {} ms ({} instances/s), committed {}, failed {}, "
+                    + "transaction latency {}",
+                    instances.size(), batchSize, batcher.getRequests(), requested / 1000000L,
+                    elapsed / 1000000L, String.format("%.1f", instances.size() * 1e9 / elapsed),
+                    committed, failed, batcher.getLatencies());
+            
+            Assert.assertTrue("N-EVENT-REPORTs pending: " + batcher.getPending(), completed);
+            Assert.assertEquals((instances.size() + batchSize - 1) / batchSize, batcher.getRequests());
+            Assert.assertEquals(0, batcher.getUncorrelatedEventReports());
+            Assert.assertEquals(0, failed);
+            Assert.assertEquals(instances.size(), committed);
+        } finally {
+            batcher.close();
+        }
+    }
+}
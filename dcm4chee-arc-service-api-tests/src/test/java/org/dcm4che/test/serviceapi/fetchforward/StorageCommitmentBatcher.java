@@ -0,0 +1,358 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.TransferCapability.Role;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.BasicCEchoSCP;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.dcm4che3.util.UIDUtils;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage commitment SCU requesting commitment for many instances per
+ * N-ACTION.
+ * <p>
+ * Instances are split into transactions of up to <code>batchSize</code>
+ * instances. Each transaction is registered in an index of pending
+ * transactions by its Transaction UID before its N-ACTION is sent. The
+ * N-EVENT-REPORTs, which the storage commitment SCP sends on associations of
+ * its own, are correlated by Transaction UID against this index and complete
+ * the transaction asynchronously.
+ */
+public class StorageCommitmentBatcher implements Closeable {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(StorageCommitmentBatcher.class);
+    
+    private static final int PCID = 1;
+    
+    private static final int REQUEST_STORAGE_COMMITMENT = 1;
+    
+    private static final String[] TRANSFER_SYNTAXES = {
+        UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian
+    };
+    
+    /**
+     * Storage commitment transaction of up to <code>batchSize</code>
+     * instances.
+     */
+    public static class Transaction {
+        private final String transactionUID;
+        private final int size;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long requested;
+        private volatile long completed;
+        private volatile int committed;
+        private volatile int failed;
+        
+        Transaction(String transactionUID, int size) {
+            this.transactionUID = transactionUID;
+            this.size = size;
+        }
+        
+        void complete(int committed, int failed) {
+            this.committed = committed;
+            this.failed = failed;
+            this.completed = System.nanoTime();
+            done.countDown();
+        }
+        
+        public String getTransactionUID() {
+            return transactionUID;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+        
+        public int getCommitted() {
+            return committed;
+        }
+        
+        public int getFailed() {
+            return failed;
+        }
+        
+        /**
+         * Returns the time from sending the N-ACTION to receiving the
+         * N-EVENT-REPORT, or -1 if not done.
+         */
+        public long getLatencyNanos() {
+            return isDone() ? completed - requested : -1;
+        }
+    }
+    
+    private final Device device;
+    private final ApplicationEntity ae;
+    private final Connection remote;
+    private final String calledAET;
+    private final int batchSize;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    
+    private final ConcurrentMap<String, Transaction> pending = new ConcurrentHashMap<String, Transaction>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger eventReports = new AtomicInteger();
+    private final AtomicInteger uncorrelatedEventReports = new AtomicInteger();
+    private final LatencyRecorder latencies = new LatencyRecorder();
+    
+    /**
+     * @param device device to connect from and receive N-EVENT-REPORTs by,
+     *        e.g. <code>stgcmtscu</code>; it is started by this batcher,
+     *        so it must not be shared
+     */
+    public StorageCommitmentBatcher(Device device, String aet, String host, int port, String calledAET,
+            int batchSize) throws IOException, GeneralSecurityException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        }
+        this.device = device;
+        this.ae = device.getApplicationEntity(aet);
+        if (ae == null) {
+            throw new IllegalArgumentException("No AE " + aet + " in device " + device.getDeviceName());
+        }
+        this.remote = new Connection("stgcmt", host, port);
+        this.calledAET = calledAET;
+        this.batchSize = batchSize;
+        
+        ae.addTransferCapability(new TransferCapability(null,
+                UID.StorageCommitmentPushModelSOPClass, Role.SCU, TRANSFER_SYNTAXES));
+        ae.addTransferCapability(new TransferCapability(null,
+                UID.StorageCommitmentPushModelSOPClass, Role.SCP, TRANSFER_SYNTAXES));
+        ae.addTransferCapability(new TransferCapability(null,
+                UID.VerificationSOPClass, Role.SCP, UID.ImplicitVRLittleEndian));
+        DicomServiceRegistry services = new DicomServiceRegistry();
+        services.addDicomService(new BasicCEchoSCP());
+        services.addDicomService(new EventReportSCP());
+        device.setDimseRQHandler(services);
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        device.bindConnections();
+    }
+    
+    /**
+     * Sends one N-ACTION per <code>batchSize</code> instances on one
+     * association. Returns after all N-ACTION responses were received; the
+     * returned transactions complete on receipt of their N-EVENT-REPORT.
+     */
+    public List<Transaction> commit(Collection<ArchiveInstanceLocator> instances) throws Exception {
+        List<Transaction> transactions = new ArrayList<Transaction>(
+                (instances.size() + batchSize - 1) / batchSize);
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCalledAET(calledAET);
+        rq.addPresentationContext(new PresentationContext(PCID,
+                UID.StorageCommitmentPushModelSOPClass, TRANSFER_SYNTAXES));
+        Association as = ae.connect(remote, rq);
+        try {
+            PresentationContext pc = as.getAAssociateAC().getPresentationContext(PCID);
+            if (pc == null || !pc.isAccepted()) {
+                throw new IOException(calledAET + " rejected Storage Commitment");
+            }
+            Iterator<ArchiveInstanceLocator> iter = instances.iterator();
+            while (iter.hasNext()) {
+                Attributes actionInfo = new Attributes(2);
+                Sequence refSOPSeq = actionInfo.newSequence(Tag.ReferencedSOPSequence, batchSize);
+                for (int i = 0; i < batchSize && iter.hasNext(); i++) {
+                    ArchiveInstanceLocator inst = iter.next();
+                    Attributes refSOP = new Attributes(2);
+                    refSOP.setString(Tag.ReferencedSOPClassUID, VR.UI, inst.cuid);
+                    refSOP.setString(Tag.ReferencedSOPInstanceUID, VR.UI, inst.iuid);
+                    refSOPSeq.add(refSOP);
+                }
+                final Transaction tx = new Transaction(UIDUtils.createUID(), refSOPSeq.size());
+                actionInfo.setString(Tag.TransactionUID, VR.UI, tx.transactionUID);
+                pending.put(tx.transactionUID, tx);
+                transactions.add(tx);
+                tx.requested = System.nanoTime();
+                requests.incrementAndGet();
+                as.naction(UID.StorageCommitmentPushModelSOPClass,
+                        UID.StorageCommitmentPushModelSOPInstance,
+                        REQUEST_STORAGE_COMMITMENT, actionInfo, pc.getTransferSyntax(),
+                        new DimseRSPHandler(as.nextMessageID()) {
+                            @Override
+                            public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                                super.onDimseRSP(as, cmd, data);
+                                int status = cmd.getInt(Tag.Status, -1);
+                                if (status != Status.Success && pending.remove(tx.transactionUID) != null) {
+                                    LOG.warn("N-ACTION of transaction {} failed with status {}",
+                                            tx.transactionUID, Integer.toHexString(status));
+                                    tx.complete(0, tx.size);
+                                }
+                            }
+                        });
+            }
+            as.waitForOutstandingRSP();
+        } finally {
+            as.release();
+        }
+        return transactions;
+    }
+    
+    /**
+     * Waits until all transactions received their N-EVENT-REPORT.
+     * 
+     * @return <code>false</code> if the timeout elapsed before
+     */
+    public boolean awaitCompletion(Collection<Transaction> transactions, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Transaction tx : transactions) {
+            if (!tx.done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * Returns the number of N-ACTION requests sent.
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+    
+    public int getEventReports() {
+        return eventReports.get();
+    }
+    
+    /**
+     * Returns the number of N-EVENT-REPORTs without pending transaction.
+     */
+    public int getUncorrelatedEventReports() {
+        return uncorrelatedEventReports.get();
+    }
+    
+    public int getPending() {
+        return pending.size();
+    }
+    
+    /**
+     * Returns the latencies from N-ACTION to N-EVENT-REPORT of the completed
+     * transactions.
+     */
+    public LatencyRecorder getLatencies() {
+        return latencies;
+    }
+    
+    @Override
+    public void close() {
+        device.unbindConnections();
+        executor.shutdown();
+        scheduledExecutor.shutdown();
+    }
+    
+    private void onEventReport(Attributes eventInfo) {
+        eventReports.incrementAndGet();
+        String transactionUID = eventInfo.getString(Tag.TransactionUID);
+        Transaction tx = transactionUID != null ? pending.remove(transactionUID) : null;
+        if (tx == null) {
+            uncorrelatedEventReports.incrementAndGet();
+            LOG.warn("Received N-EVENT-REPORT for unknown transaction {}", transactionUID);
+            return;
+        }
+        tx.complete(sizeOf(eventInfo.getSequence(Tag.ReferencedSOPSequence)),
+                sizeOf(eventInfo.getSequence(Tag.FailedSOPSequence)));
+        latencies.record(tx.completed - tx.requested);
+    }
+    
+    private static int sizeOf(Sequence seq) {
+        return seq != null ? seq.size() : 0;
+    }
+    
+    private final class EventReportSCP extends AbstractDicomService {
+        
+        EventReportSCP() {
+            super(UID.StorageCommitmentPushModelSOPClass);
+        }
+        
+        @Override
+        protected void onDimseRQ(Association as, PresentationContext pc, Dimse dimse,
+                Attributes cmd, Attributes data) throws IOException {
+            if (dimse != Dimse.N_EVENT_REPORT_RQ) {
+                throw new DicomServiceException(Status.UnrecognizedOperation);
+            }
+            onEventReport(data);
+            as.writeDimseRSP(pc, Commands.mkNEventReportRSP(cmd, Status.Success), null);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+
+import javax.inject.Inject;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.util.UIDUtils;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.archive.store.StoreSession;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmarks the DB-only ingest path (<code>StoreAction.UPDATEDB</code>) used
+ * by <code>FetchForwardServiceTest.storeInstanceToDB</code>.
+ * <p>
+ * <code>StoreService.updateDB</code> depends on the container managed
+ * persistence context, so the benchmark runs within the container against the
+ * data source of the test server (configure an embedded database there to get
+ * reproducible numbers). Each scenario is executed for
+ * {@link #WARMUP_ITERATIONS} warm up and {@link #MEASUREMENT_ITERATIONS}
+ * measurement instances; throughput and latency percentiles are logged.
+ * <p>
+ * The stored instances remain in the DB, so the benchmark is excluded from
+ * the regular test run and executed with <code>-Pbenchmark</code> only.
+ */
+@RunWith(Arquillian.class)
+public class StoreUpdateDBBenchmarkTest {
+    private static final Logger LOG = LoggerFactory.getLogger(StoreUpdateDBBenchmarkTest.class);
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    static final int WARMUP_ITERATIONS = 200;
+    
+    static final int MEASUREMENT_ITERATIONS = 1000;
+    
+    private enum Scenario {
+        /** each instance belongs to a new patient */
+        NEW_PATIENT,
+        /** each instance belongs to a new study of an existing patient */
+        EXISTING_PATIENT,
+        /** each instance belongs to an existing study */
+        EXISTING_STUDY
+    }
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private Device device;
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(StoreUpdateDBBenchmarkTest.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void updateDBNewPatient() throws Exception {
+        benchmark(Scenario.NEW_PATIENT);
+    }
+    
+    @Test
+    public void updateDBExistingPatient() throws Exception {
+        benchmark(Scenario.EXISTING_PATIENT);
+    }
+    
+    @Test
+    public void updateDBExistingStudy() throws Exception {
+        benchmark(Scenario.EXISTING_STUDY);
+    }
+    
+    private void benchmark(Scenario scenario) throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        String runID = scenario.name() + '-' + System.currentTimeMillis();
+        template.setString(Tag.PatientID, VR.LO, runID);
+        template.setString(Tag.StudyInstanceUID, VR.UI, UIDUtils.createUID());
+        template.setString(Tag.SeriesInstanceUID, VR.UI, UIDUtils.createUID());
+        template.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        
+        StoreSession session = ArchiveTestSupport.createStoreSession(storeService, device);
+        // create the patient and the study referenced by the EXISTING_* scenarios
+        updateDB(session, template);
+        
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            updateDB(session, nextInstance(template, scenario, runID, i));
+        }
+        
+        LatencyRecorder latency = new LatencyRecorder();
+        long start = System.nanoTime();
+        for (int i = WARMUP_ITERATIONS, end = WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i < end; i++) {
+            Attributes attrs = nextInstance(template, scenario, runID, i);
+            long t0 = System.nanoTime();
+            updateDB(session, attrs);
+            latency.record(System.nanoTime() - t0);
+        }
+        long elapsed = System.nanoTime() - start;
+        
+        LOG.info("updateDB {}: {} instances/s, latency [{}]", scenario,
+                String.format("%.1f", MEASUREMENT_ITERATIONS * 1e9 / elapsed),
+                latency);
+        
+        Assert.assertEquals(MEASUREMENT_ITERATIONS, latency.count());
+    }
+    
+    private void updateDB(StoreSession session, Attributes attrs) throws Exception {
+        StoreContext storeContext = storeService.createStoreContext(session);
+        storeContext.setAttributes(attrs);
+        storeContext.setStoreAction(StoreAction.UPDATEDB);
+        storeService.updateDB(storeContext);
+    }
+    
+    private static Attributes nextInstance(Attributes template, Scenario scenario, String runID, int index) {
+        Attributes attrs = new Attributes(template);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        switch (scenario) {
+        case NEW_PATIENT:
+            attrs.setString(Tag.PatientID, VR.LO, runID + '-' + index);
+            // fall through
+        case EXISTING_PATIENT:
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, UIDUtils.createUID());
+            attrs.setString(Tag.SeriesInstanceUID, VR.UI, UIDUtils.createUID());
+            break;
+        case EXISTING_STUDY:
+            break;
+        }
+        return attrs;
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
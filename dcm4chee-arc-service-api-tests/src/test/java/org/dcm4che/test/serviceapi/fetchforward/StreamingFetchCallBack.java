@@ -0,0 +1,213 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+
+/**
+ * {@link FetchForwardCallBack} which streams fetched instances one by one to
+ * an {@link InstanceListener}, instead of collecting them.
+ * <p>
+ * Fetched instances are passed through a bounded buffer to a dedicated
+ * delivery thread. If the listener falls behind, <code>onFetch</code> blocks
+ * until buffer space is available, which throttles the fetching thread, so
+ * memory usage does not depend on the number of fetched instances. The
+ * number of such blocking puts and the time blocked tell whether the
+ * listener throttled the fetch.
+ */
+public class StreamingFetchCallBack implements FetchForwardCallBack {
+    
+    public interface InstanceListener {
+        void onInstanceFetched(ArchiveInstanceLocator instance, BasicCStoreSCUResp resp)
+                throws Exception;
+    }
+    
+    private static final class Event {
+        final ArchiveInstanceLocator instance;
+        final BasicCStoreSCUResp resp;
+        
+        Event(ArchiveInstanceLocator instance, BasicCStoreSCUResp resp) {
+            this.instance = instance;
+            this.resp = resp;
+        }
+    }
+    
+    private static final Event END_OF_STREAM = new Event(null, null);
+    
+    private static final long POLL_MILLIS = 100;
+    
+    private final BlockingQueue<Event> buffer;
+    private final InstanceListener listener;
+    private final Thread deliveryThread;
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger blockedPuts = new AtomicInteger();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile Throwable failure;
+    
+    public StreamingFetchCallBack(int bufferSize, InstanceListener listener) {
+        this.buffer = new ArrayBlockingQueue<Event>(bufferSize);
+        this.listener = listener;
+        this.deliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, "StreamingFetchCallBack");
+        this.deliveryThread.setDaemon(true);
+        this.deliveryThread.start();
+    }
+    
+    @Override
+    public void onFetch(Collection<ArchiveInstanceLocator> instances, BasicCStoreSCUResp resp) {
+        for (ArchiveInstanceLocator instance : instances) {
+            put(new Event(instance, resp));
+        }
+    }
+    
+    /**
+     * Signals that no further instances will be fetched and waits until all
+     * buffered instances are delivered to the listener.
+     * 
+     * @throws Exception the first exception thrown by the listener
+     */
+    public void finish() throws Exception {
+        put(END_OF_STREAM);
+        deliveryThread.join();
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw (Exception) failure;
+        }
+    }
+    
+    /**
+     * Like {@link #finish()}, but called after the fetch itself failed with
+     * <code>primary</code>: an exception of the listener is added to
+     * <code>primary</code> as suppressed exception instead of replacing it.
+     * 
+     * @param primary the exception of the fetch or <code>null</code>
+     * @throws Exception the first exception thrown by the listener, if
+     *         <code>primary</code> is <code>null</code>
+     */
+    public void finish(Throwable primary) throws Exception {
+        try {
+            finish();
+        } catch (Throwable e) {
+            if (primary == null) {
+                throw e;
+            }
+            primary.addSuppressed(e);
+        }
+    }
+    
+    public int getDelivered() {
+        return delivered.get();
+    }
+    
+    /**
+     * Returns the number of instances for which <code>onFetch</code> had to
+     * wait for buffer space.
+     */
+    public int getBlockedPuts() {
+        return blockedPuts.get();
+    }
+    
+    public long getBlockedMillis() {
+        return blockedNanos.get() / 1000000L;
+    }
+    
+    public int getBufferSize() {
+        return buffer.size() + buffer.remainingCapacity();
+    }
+    
+    /*
+     * Waits for buffer space as long as the delivery thread is alive, which
+     * would not take any further event from the buffer otherwise.
+     */
+    private void put(Event event) {
+        if (buffer.offer(event)) {
+            return;
+        }
+        blockedPuts.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            while (!buffer.offer(event, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!deliveryThread.isAlive()) {
+                    throw new IllegalStateException("Delivery thread terminated", failure);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for buffer space", e);
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    private void deliver() {
+        try {
+            Event event;
+            while ((event = buffer.take()) != END_OF_STREAM) {
+                if (failure == null) {
+                    try {
+                        listener.onInstanceFetched(event.instance, event.resp);
+                        delivered.incrementAndGet();
+                    } catch (Throwable e) {
+                        // keep draining the buffer, so the fetching thread is not blocked
+                        failure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+            Thread.currentThread().interrupt();
+        }
+    }
+}
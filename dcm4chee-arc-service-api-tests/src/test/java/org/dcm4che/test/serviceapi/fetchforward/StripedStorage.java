@@ -0,0 +1,221 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4chee.storage.conf.StorageSystem;
+
+/**
+ * Distributes the writes of received instances across the file system
+ * {@link StorageSystem}s of a storage system group.
+ * <p>
+ * Each storage system has one I/O worker, so writes to different volumes
+ * proceed in parallel while each volume sees sequential writes. The
+ * {@link Distribution} selects the storage system of each instance.
+ */
+public class StripedStorage implements Closeable {
+    
+    public enum Distribution {
+        /** storage systems in turn */
+        ROUND_ROBIN,
+        /**
+         * storage system with the least bytes written and queued, selected
+         * and reserved atomically, so concurrent writers do not pick the
+         * same storage system
+         */
+        LEAST_USED,
+        /** all instances of a study on the same storage system */
+        HASH_BY_STUDY
+    }
+    
+    private static final class Stripe {
+        final StorageSystem storageSystem;
+        final Path dir;
+        final ExecutorService worker = Executors.newSingleThreadExecutor();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong queued = new AtomicLong();
+        final AtomicInteger instances = new AtomicInteger();
+        
+        Stripe(StorageSystem storageSystem) {
+            this.storageSystem = storageSystem;
+            this.dir = Paths.get(storageSystem.getStorageSystemPath());
+        }
+        
+        long used() {
+            return written.get() + queued.get();
+        }
+    }
+    
+    private final Stripe[] stripes;
+    private final Distribution distribution;
+    private final AtomicInteger next = new AtomicInteger();
+    
+    public StripedStorage(Collection<StorageSystem> storageSystems, Distribution distribution) {
+        if (storageSystems.isEmpty()) {
+            throw new IllegalArgumentException("No storage systems");
+        }
+        this.stripes = new Stripe[storageSystems.size()];
+        int i = 0;
+        for (StorageSystem storageSystem : storageSystems) {
+            stripes[i++] = new Stripe(storageSystem);
+        }
+        this.distribution = distribution;
+    }
+    
+    public Distribution getDistribution() {
+        return distribution;
+    }
+    
+    /**
+     * Writes the instance to <code>{storageSystemPath}/{study}/{instance}</code>
+     * of the selected storage system by its I/O worker.
+     * 
+     * @return the path of the written file
+     */
+    public Future<Path> store(String studyIUID, final String iuid, final byte[] data) {
+        final Stripe stripe;
+        // used() only changes under this lock
+        synchronized (this) {
+            stripe = select(studyIUID, data.length);
+            stripe.queued.addAndGet(data.length);
+        }
+        final Path studyDir = stripe.dir.resolve(studyIUID);
+        return stripe.worker.submit(new Callable<Path>() {
+            @Override
+            public Path call() throws IOException {
+                boolean written = false;
+                try {
+                    Path file = Files.createDirectories(studyDir).resolve(iuid);
+                    Files.write(file, data);
+                    written = true;
+                    stripe.instances.incrementAndGet();
+                    return file;
+                } finally {
+                    synchronized (StripedStorage.this) {
+                        if (written) {
+                            stripe.written.addAndGet(data.length);
+                        }
+                        stripe.queued.addAndGet(-data.length);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Returns the storage system selected for the next instance of the
+     * specified study.
+     */
+    public synchronized StorageSystem selectStorageSystem(String studyIUID, long length) {
+        return select(studyIUID, length).storageSystem;
+    }
+    
+    // guarded by this, as the sums of the stripes are compared
+    private Stripe select(String studyIUID, long length) {
+        switch (distribution) {
+        case ROUND_ROBIN:
+            return stripes[(next.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+        case HASH_BY_STUDY:
+            return stripes[(studyIUID.hashCode() & Integer.MAX_VALUE) % stripes.length];
+        default:
+            Stripe least = stripes[0];
+            for (int i = 1; i < stripes.length; i++) {
+                if (stripes[i].used() < least.used()) {
+                    least = stripes[i];
+                }
+            }
+            return least;
+        }
+    }
+    
+    /**
+     * Returns the number of instances written to each storage system.
+     */
+    public Map<String, Integer> getInstancesByStorageSystem() {
+        Map<String, Integer> instances = new LinkedHashMap<String, Integer>();
+        for (Stripe stripe : stripes) {
+            instances.put(stripe.storageSystem.getStorageSystemID(), stripe.instances.get());
+        }
+        return instances;
+    }
+    
+    /**
+     * Returns the number of bytes written to each storage system.
+     */
+    public Map<String, Long> getBytesByStorageSystem() {
+        Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+        for (Stripe stripe : stripes) {
+            bytes.put(stripe.storageSystem.getStorageSystemID(), stripe.written.get());
+        }
+        return bytes;
+    }
+    
+    /**
+     * Waits for the queued writes and stops the I/O workers.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Stripe stripe : stripes) {
+            stripe.worker.shutdown();
+        }
+        try {
+            for (Stripe stripe : stripes) {
+                stripe.worker.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the throughput of writing the instances of fetched studies into
+ * a storage system group of {@link #fileSystems} temp directory file
+ * systems by {@link StripedStorage}.
+ * <p>
+ * One operation writes {@link #STUDIES} studies of {@link #INSTANCES_PER_STUDY}
+ * instances. The temp directories share one volume unless
+ * <code>java.io.tmpdir</code> is changed, so the gain of more file systems
+ * shows only the parallelism of the I/O workers; point the directories to
+ * separate volumes to measure striping.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripedStorageBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(StripedStorageBenchmark.class);
+    
+    private static final int STUDIES = 4;
+    private static final int INSTANCES_PER_STUDY = 50;
+    
+    @Param({"1", "2", "4"})
+    public int fileSystems;
+    
+    @Param({"ROUND_ROBIN", "LEAST_USED", "HASH_BY_STUDY"})
+    public StripedStorage.Distribution distribution;
+    
+    @Param({"524288"})
+    public int instanceSize;
+    
+    private Path root;
+    private StripedStorage storage;
+    private byte[][] instances;
+    
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("striped-storage-benchmark");
+        Path[] dirs = new Path[fileSystems];
+        for (int i = 0; i < fileSystems; i++) {
+            dirs[i] = Files.createDirectory(root.resolve("fs" + (i + 1)));
+        }
+        StorageSystemGroup grp = new StorageSystemGroup();
+        grp.setGroupID("striped_grp");
+        storage = new StripedStorage(ArchiveTestSupport.addFileSystems(grp, dirs), distribution);
+        Random random = new Random(42);
+        instances = new byte[INSTANCES_PER_STUDY][instanceSize];
+        for (byte[] instance : instances) {
+            random.nextBytes(instance);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        LOG.info("Instances by storage system: {}", storage.getInstancesByStorageSystem());
+        StripedStorageTest.deleteTree(root);
+    }
+    
+    /**
+     * Writes the studies and waits until all instances are written.
+     */
+    @Benchmark
+    public void storeStudies() throws Exception {
+        List<Future<Path>> files = new ArrayList<Future<Path>>(STUDIES * INSTANCES_PER_STUDY);
+        for (int study = 0; study < STUDIES; study++) {
+            for (int i = 0; i < INSTANCES_PER_STUDY; i++) {
+                files.add(storage.store("1.2.3." + study, "1.2.3." + study + '.' + i, instances[i]));
+            }
+        }
+        for (Future<Path> file : files) {
+            file.get();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies the distribution of writes by {@link StripedStorage} across the
+ * file systems of a storage system group.
+ */
+public class StripedStorageTest {
+    
+    private static final int STRIPES = 4;
+    
+    private Path root;
+    private List<StorageSystem> storageSystems;
+    
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("striped-storage-test");
+        Path[] dirs = new Path[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            dirs[i] = Files.createDirectory(root.resolve("fs" + (i + 1)));
+        }
+        StorageSystemGroup grp = new StorageSystemGroup();
+        grp.setGroupID("striped_grp");
+        storageSystems = ArchiveTestSupport.addFileSystems(grp, dirs);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        deleteTree(root);
+    }
+    
+    @Test
+    public void distributesRoundRobin() throws Exception {
+        StripedStorage storage = store(StripedStorage.Distribution.ROUND_ROBIN, 100, 1, 1000);
+        for (int instances : storage.getInstancesByStorageSystem().values()) {
+            Assert.assertEquals(100 / STRIPES, instances);
+        }
+    }
+    
+    @Test
+    public void keepsStudiesTogether() throws Exception {
+        store(StripedStorage.Distribution.HASH_BY_STUDY, 100, 10, 1000);
+        int total = 0;
+        for (StorageSystem storageSystem : storageSystems) {
+            Path dir = Paths.get(storageSystem.getStorageSystemPath());
+            try (DirectoryStream<Path> studies = Files.newDirectoryStream(dir)) {
+                for (Path study : studies) {
+                    Assert.assertEquals(10, count(study));
+                    total += 10;
+                }
+            }
+        }
+        Assert.assertEquals(100, total);
+    }
+    
+    @Test
+    public void balancesBytesWritten() throws Exception {
+        int maxLength = 10000;
+        StripedStorage storage = store(StripedStorage.Distribution.LEAST_USED, 100, 1, maxLength);
+        long min = Collections.min(storage.getBytesByStorageSystem().values());
+        long max = Collections.max(storage.getBytesByStorageSystem().values());
+        Assert.assertTrue(max - min <= maxLength);
+    }
+    
+    @Test
+    public void balancesBytesWrittenByConcurrentWriters() throws Exception {
+        final int writers = 8;
+        final int instancesPerWriter = 50;
+        final int maxLength = 10000;
+        final StripedStorage storage = new StripedStorage(storageSystems, StripedStorage.Distribution.LEAST_USED);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<List<Future<Path>>>> results = new ArrayList<Future<List<Future<Path>>>>(writers);
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                results.add(executor.submit(new Callable<List<Future<Path>>>() {
+                    @Override
+                    public List<Future<Path>> call() throws Exception {
+                        startSignal.await();
+                        List<Future<Path>> files = new ArrayList<Future<Path>>(instancesPerWriter);
+                        for (int i = writer * instancesPerWriter, end = i + instancesPerWriter; i < end; i++) {
+                            byte[] data = new byte[maxLength / 2 + (i * 7919) % (maxLength / 2)];
+                            files.add(storage.store("1.2.3." + writer, "1.2.3.4." + i, data));
+                        }
+                        return files;
+                    }
+                }));
+            }
+            startSignal.countDown();
+            for (Future<List<Future<Path>>> result : results) {
+                for (Future<Path> file : result.get()) {
+                    file.get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            storage.close();
+        }
+        int total = 0;
+        for (int instances : storage.getInstancesByStorageSystem().values()) {
+            total += instances;
+        }
+        Assert.assertEquals(writers * instancesPerWriter, total);
+        long min = Collections.min(storage.getBytesByStorageSystem().values());
+        long max = Collections.max(storage.getBytesByStorageSystem().values());
+        Assert.assertTrue(max - min <= maxLength);
+    }
+    
+    /*
+     * Stores instances of varying length up to maxLength, spread over studies.
+     */
+    private StripedStorage store(StripedStorage.Distribution distribution, int instances, int studies,
+            int maxLength) throws Exception {
+        StripedStorage storage = new StripedStorage(storageSystems, distribution);
+        try {
+            List<Future<Path>> files = new ArrayList<Future<Path>>(instances);
+            for (int i = 0; i < instances; i++) {
+                byte[] data = new byte[maxLength / 2 + (i * 7919) % (maxLength / 2)];
+                files.add(storage.store("1.2.3." + (i % studies), "1.2.3.4." + i, data));
+            }
+            for (int i = 0; i < instances; i++) {
+                Assert.assertEquals(maxLength / 2 + (i * 7919) % (maxLength / 2), Files.size(files.get(i).get()));
+            }
+        } finally {
+            storage.close();
+        }
+        return storage;
+    }
+    
+    private static int count(Path dir) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (@SuppressWarnings("unused") Path file : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+
+/**
+ * Derives synthetic instances from a template instance header.
+ * <p>
+ * The SOP Instance UID of the n-th instance is derived from the template UID,
+ * so both the test driver seeding the external device and the test executed
+ * within the container can compute the same UIDs without exchanging any data.
+ */
+public class SyntheticInstances {
+
+    /**
+     * Maximal number of instances that can be derived from one template
+     * without exceeding the maximal UID length of 64 characters.
+     */
+    public static final int MAX_INSTANCES = 999999;
+
+    private SyntheticInstances() {
+        // NOP
+    }
+
+    public static String sopInstanceUID(Attributes template, int index) {
+        return deriveUID(template.getString(Tag.SOPInstanceUID), index);
+    }
+
+    public static Attributes createInstance(Attributes template, int index) {
+        Attributes attrs = new Attributes(template);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, sopInstanceUID(template, index));
+        attrs.setString(Tag.InstanceNumber, VR.IS, Integer.toString(index + 1));
+        return attrs;
+    }
+
+    /**
+     * Writes instances <code>from</code> to <code>from + count - 1</code> as
+     * DICOM files with Explicit VR Little Endian transfer syntax to the
+     * specified directory.
+     */
+    public static void writeInstances(Attributes template, int from, int count, File dir)
+            throws IOException {
+        for (int i = from, end = from + count; i < end; i++) {
+            Attributes attrs = createInstance(template, i);
+            Attributes fmi = attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+            DicomOutputStream out = new DicomOutputStream(
+                    new File(dir, attrs.getString(Tag.SOPInstanceUID) + ".dcm"));
+            try {
+                out.writeDataset(fmi, attrs);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static String deriveUID(String templateUID, int index) {
+        if (index < 0 || index >= MAX_INSTANCES) {
+            throw new IllegalArgumentException("index: " + index);
+        }
+        String uid = templateUID + '.' + (index + 1);
+        if (uid.length() > 64) {
+            throw new IllegalArgumentException("Derived UID exceeds 64 characters: " + uid);
+        }
+        return uid;
+    }
+}
@@ -0,0 +1,375 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.imageio.codec.Decompressor;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk based LRU cache of instances transcoded to a target Transfer Syntax,
+ * keyed by SOP Instance UID and target Transfer Syntax UID.
+ * <p>
+ * Instances are transcoded by a bounded pool of workers. Concurrent requests
+ * of the same key wait for the same transcoding. Compressed pixel data is
+ * decompressed frame by frame by the {@link Decompressor} of
+ * <code>dcm4che-imageio</code> while the transcoded file is written, so only
+ * one frame is held in memory. Supported targets are the native little
+ * endian Transfer Syntaxes; requests for the Transfer Syntax of the source
+ * are served from the source file without caching.
+ * <p>
+ * The cached files are kept in a subdirectory of the specified directory,
+ * which is created by and owned by the cache and deleted by {@link #close()}.
+ * Pending transcodings are cancelled by {@link #close()}; requests waiting
+ * for them fail with an {@link IOException}.
+ * The least recently used files are deleted when the cached files exceed
+ * the configured size. The CPU time spent on the transcoding of each entry
+ * is recorded, so hits tell the CPU time saved by the cache.
+ */
+public class TranscodingCache implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(TranscodingCache.class);
+    
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+    
+    private static final class Entry {
+        final Path file;
+        final long length;
+        final long cpuNanos;
+        
+        Entry(Path file, long length, long cpuNanos) {
+            this.file = file;
+            this.length = length;
+            this.cpuNanos = cpuNanos;
+        }
+    }
+    
+    private final Path dir;
+    private final long maxBytes;
+    private final ExecutorService executor;
+    private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    // guarded by this, like lru, so a key is either cached, pending or neither
+    private final Map<String, Future<Entry>> pending = new HashMap<String, Future<Entry>>();
+    private long bytes;
+    private boolean closed;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong transcodeCpuNanos = new AtomicLong();
+    private final AtomicLong savedCpuNanos = new AtomicLong();
+    
+    /**
+     * @param parentDir directory in which the cache creates its own
+     *        subdirectory; other files in it are not touched
+     */
+    public TranscodingCache(Path parentDir, long maxBytes, int workers) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        // a new directory, as the CPU time of files left by a previous run is unknown
+        this.dir = Files.createTempDirectory(Files.createDirectories(parentDir), "transcoding-cache");
+        this.maxBytes = maxBytes;
+        this.executor = Executors.newFixedThreadPool(workers);
+    }
+    
+    /**
+     * Returns the subdirectory owned by the cache.
+     */
+    public Path getDir() {
+        return dir;
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    /**
+     * Returns the CPU time spent on transcoding by the workers.
+     */
+    public long getTranscodeCpuNanos() {
+        return transcodeCpuNanos.get();
+    }
+    
+    /**
+     * Returns the CPU time the hits would have spent on transcoding.
+     */
+    public long getSavedCpuNanos() {
+        return savedCpuNanos.get();
+    }
+    
+    public synchronized int size() {
+        return lru.size();
+    }
+    
+    public synchronized long getBytes() {
+        return bytes;
+    }
+    
+    /**
+     * Returns the instance with the specified SOP Instance UID in the
+     * specified Transfer Syntax, transcoding the source file if the instance
+     * is not cached. The returned file may be deleted by the eviction of the
+     * entry, so it should be opened without delay.
+     * 
+     * @throws IllegalArgumentException if <code>tsuid</code> is neither a
+     *         native little endian Transfer Syntax nor the Transfer Syntax
+     *         of the source
+     * @throws IllegalStateException if the cache is closed
+     */
+    public Path get(final Path source, String iuid, final String tsuid) throws IOException {
+        if (!UID.ImplicitVRLittleEndian.equals(tsuid) && !UID.ExplicitVRLittleEndian.equals(tsuid)) {
+            if (tsuid.equals(transferSyntaxOf(source))) {
+                return source;
+            }
+            throw new IllegalArgumentException("Unsupported target Transfer Syntax: " + tsuid);
+        }
+        final String key = iuid + '_' + tsuid;
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                return transcode(source, key, tsuid);
+            }
+        });
+        Future<Entry> future;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Transcoding cache closed");
+            }
+            Entry entry = lru.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                savedCpuNanos.addAndGet(entry.cpuNanos);
+                return entry.file;
+            }
+            future = pending.get(key);
+            if (future == null) {
+                pending.put(key, task);
+                future = task;
+            }
+        }
+        try {
+            if (future == task) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // closed since the task was registered
+                    task.cancel(false);
+                }
+            }
+            Entry entry = future.get();
+            if (entry.file == source) {
+                return source;
+            }
+            if (future == task) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+                savedCpuNanos.addAndGet(entry.cpuNanos);
+            }
+            return entry.file;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transcoding " + key, e);
+        } catch (CancellationException e) {
+            throw new IOException("Transcoding cache closed while transcoding " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to transcode " + key, cause);
+        } finally {
+            if (future == task) {
+                synchronized (this) {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+    
+    private static String transferSyntaxOf(Path source) throws IOException {
+        try (DicomInputStream in = new DicomInputStream(source.toFile())) {
+            Attributes fmi = in.readFileMetaInformation();
+            return fmi != null ? fmi.getString(Tag.TransferSyntaxUID) : null;
+        }
+    }
+    
+    private Entry transcode(Path source, String key, String tsuid) throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+        Attributes fmi;
+        Attributes attrs;
+        try (DicomInputStream in = new DicomInputStream(source.toFile())) {
+            in.setIncludeBulkData(IncludeBulkData.URI);
+            fmi = in.readFileMetaInformation();
+            attrs = in.readDataset(-1, -1);
+        }
+        String srcTsuid = fmi != null ? fmi.getString(Tag.TransferSyntaxUID) : null;
+        if (srcTsuid == null) {
+            throw new IOException("Missing Transfer Syntax UID in " + source);
+        }
+        if (tsuid.equals(srcTsuid)) {
+            return new Entry(source, 0, 0);
+        }
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        Path file = dir.resolve(key + ".dcm");
+        Decompressor decompressor = new Decompressor(attrs, srcTsuid);
+        try {
+            decompressor.decompress();
+            try (DicomOutputStream out = new DicomOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)), UID.ExplicitVRLittleEndian)) {
+                out.writeDataset(attrs.createFileMetaInformation(tsuid), attrs);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            decompressor.dispose();
+            Files.deleteIfExists(tmp);
+        }
+        long cpuNanos = threadMXBean.getCurrentThreadCpuTime() - cpuStart;
+        transcodeCpuNanos.addAndGet(cpuNanos);
+        Entry entry = new Entry(file, Files.size(file), cpuNanos);
+        put(key, entry);
+        LOG.debug("Transcoded {} from {} to {} in {} ms CPU time", key, srcTsuid, tsuid, cpuNanos / 1000000L);
+        return entry;
+    }
+    
+    private synchronized void put(String key, Entry entry) throws IOException {
+        Entry prev = lru.put(key, entry);
+        if (prev != null) {
+            bytes -= prev.length;
+        }
+        bytes += entry.length;
+        for (Iterator<Map.Entry<String, Entry>> iter = lru.entrySet().iterator();
+                iter.hasNext() && bytes > maxBytes;) {
+            Map.Entry<String, Entry> eldest = iter.next();
+            if (eldest.getValue() == entry) {
+                // keep the entry just transcoded
+                continue;
+            }
+            iter.remove();
+            bytes -= eldest.getValue().length;
+            Files.deleteIfExists(eldest.getValue().file);
+            evictions.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Cancels the pending transcodings, stops the workers and deletes all
+     * cached files and the subdirectory owned by the cache.
+     */
+    @Override
+    public void close() throws IOException {
+        List<Future<Entry>> toCancel;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toCancel = new ArrayList<Future<Entry>>(pending.values());
+        }
+        // tasks still queued are neither run nor completed by shutdownNow
+        executor.shutdownNow();
+        for (Future<Entry> future : toCancel) {
+            future.cancel(true);
+        }
+        try {
+            // running workers may still write to the subdirectory
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Workers of {} did not terminate", dir);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            lru.clear();
+            bytes = 0;
+            // also temporary files of interrupted transcodings
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.io.SAXReader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches a RLE compressed multi-frame instance repeatedly in different
+ * Transfer Syntaxes from a {@link TranscodingCache} and verifies the cache
+ * hits, the CPU time saved and the decompressed pixel data.
+ */
+public class TranscodingCacheTest {
+    private static final Logger LOG = LoggerFactory.getLogger(TranscodingCacheTest.class);
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final int ROWS = 256;
+    
+    private static final int COLUMNS = 256;
+    
+    private static final int FRAMES = 50;
+    
+    private static final int ROUNDS = 5;
+    
+    private static final long CLOSE_TIMEOUT_MILLIS = 30000;
+    
+    private Path dir;
+    private Path source;
+    private String iuid;
+    private byte[] pixelData;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("transcoding-cache-test");
+        Attributes attrs = SyntheticInstances.createInstance(SAXReader.parse(
+                TranscodingCacheTest.class.getClassLoader().getResource(INSTANCE_HEADER).toString()), 0);
+        iuid = attrs.getString(Tag.SOPInstanceUID);
+        source = dir.resolve("source.dcm");
+        pixelData = writeRLEInstance(attrs, source);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    try (DirectoryStream<Path> cached = Files.newDirectoryStream(file)) {
+                        for (Path f : cached) {
+                            Files.delete(f);
+                        }
+                    }
+                }
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+    
+    @Test
+    public void servesRepeatedRequestsFromCache() throws Exception {
+        try (TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), Long.MAX_VALUE, 2)) {
+            for (int i = 0; i < ROUNDS; i++) {
+                assertTranscoded(cache.get(source, iuid, UID.ImplicitVRLittleEndian), UID.ImplicitVRLittleEndian);
+                assertTranscoded(cache.get(source, iuid, UID.ExplicitVRLittleEndian), UID.ExplicitVRLittleEndian);
+            }
+            LOG.info("{} requests of {} frames: {} hits, {} misses, {} ms CPU spent, {} ms CPU saved",
+                    2 * ROUNDS, FRAMES, cache.getHits(), cache.getMisses(),
+                    cache.getTranscodeCpuNanos() / 1000000L, cache.getSavedCpuNanos() / 1000000L);
+            Assert.assertEquals(2, cache.getMisses());
+            Assert.assertEquals(2 * (ROUNDS - 1), cache.getHits());
+            Assert.assertEquals(2, cache.size());
+            Assert.assertTrue(cache.getSavedCpuNanos() > cache.getTranscodeCpuNanos());
+            // source Transfer Syntax is not transcoded
+            Assert.assertEquals(source, cache.get(source, iuid, UID.RLELossless));
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedTransferSyntax() throws Exception {
+        try (TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), Long.MAX_VALUE, 1)) {
+            cache.get(source, iuid, UID.JPEGLossless);
+        }
+    }
+    
+    @Test
+    public void ownsSubdirectory() throws Exception {
+        Path other = Files.createDirectories(dir.resolve("cache")).resolve("other.dcm");
+        Files.write(other, new byte[1]);
+        Path cacheDir;
+        try (TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), Long.MAX_VALUE, 1)) {
+            cacheDir = cache.getDir();
+            Assert.assertEquals(dir.resolve("cache"), cacheDir.getParent());
+            cache.get(source, iuid, UID.ImplicitVRLittleEndian);
+        }
+        Assert.assertTrue(Files.exists(other));
+        Assert.assertFalse(Files.exists(cacheDir));
+    }
+    
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        // room for one decompressed instance only
+        try (TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), 
+                pixelData.length + pixelData.length / 2, 1)) {
+            Path implicit = cache.get(source, iuid, UID.ImplicitVRLittleEndian);
+            cache.get(source, iuid, UID.ExplicitVRLittleEndian);
+            Assert.assertEquals(1, cache.getEvictions());
+            Assert.assertEquals(1, cache.size());
+            Assert.assertFalse(Files.exists(implicit));
+            cache.get(source, iuid, UID.ImplicitVRLittleEndian);
+            Assert.assertEquals(3, cache.getMisses());
+        }
+    }
+    
+    @Test
+    public void transcodesConcurrentRequestsOnce() throws Exception {
+        final int callers = 8;
+        try (final TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), Long.MAX_VALUE, 4)) {
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            try {
+                List<Future<Path>> results = new ArrayList<Future<Path>>(callers);
+                for (int i = 0; i < callers; i++) {
+                    results.add(executor.submit(new Callable<Path>() {
+                        @Override
+                        public Path call() throws Exception {
+                            startSignal.await();
+                            return cache.get(source, iuid, UID.ImplicitVRLittleEndian);
+                        }
+                    }));
+                }
+                startSignal.countDown();
+                for (Future<Path> result : results) {
+                    assertTranscoded(result.get(), UID.ImplicitVRLittleEndian);
+                }
+            } finally {
+                executor.shutdown();
+            }
+            Assert.assertEquals(1, cache.getMisses());
+            Assert.assertEquals(callers - 1, cache.getHits());
+        }
+    }
+    
+    @Test
+    public void closeCancelsPendingTranscodings() throws Exception {
+        final int callers = 8;
+        final TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), Long.MAX_VALUE, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Path>> results = new ArrayList<Future<Path>>(callers);
+            for (int i = 0; i < callers; i++) {
+                // different keys, queued for the only worker
+                final String key = iuid + '.' + i;
+                results.add(executor.submit(new Callable<Path>() {
+                    @Override
+                    public Path call() throws Exception {
+                        return cache.get(source, key, UID.ImplicitVRLittleEndian);
+                    }
+                }));
+            }
+            while (cache.getMisses() == 0) {
+                Thread.sleep(10);
+            }
+            cache.close();
+            // no request waits for a transcoding which never runs
+            for (Future<Path> result : results) {
+                try {
+                    result.get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException
+                            || e.getCause() instanceof IllegalStateException);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            cache.close();
+        }
+        Assert.assertFalse(Files.exists(cache.getDir()));
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void rejectsGetAfterClose() throws Exception {
+        TranscodingCache cache = new TranscodingCache(dir.resolve("cache"), Long.MAX_VALUE, 1);
+        cache.close();
+        cache.get(source, iuid, UID.ImplicitVRLittleEndian);
+    }
+    
+    private void assertTranscoded(Path file, String tsuid) throws IOException {
+        try (DicomInputStream in = new DicomInputStream(file.toFile())) {
+            Assert.assertEquals(tsuid, in.getTransferSyntax());
+            Attributes attrs = in.readDataset(-1, -1);
+            Assert.assertArrayEquals(pixelData, attrs.getBytes(Tag.PixelData));
+        }
+    }
+    
+    /*
+     * Writes the instance with 8 bit pixel data, RLE compressed frame by frame,
+     * and returns the uncompressed pixel data.
+     */
+    private static byte[] writeRLEInstance(Attributes attrs, Path file) throws IOException {
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.Rows, VR.US, ROWS);
+        attrs.setInt(Tag.Columns, VR.US, COLUMNS);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 8);
+        attrs.setInt(Tag.BitsStored, VR.US, 8);
+        attrs.setInt(Tag.HighBit, VR.US, 7);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, FRAMES);
+        attrs.remove(Tag.PlanarConfiguration);
+        
+        int frameLength = ROWS * COLUMNS;
+        byte[] pixelData = new byte[FRAMES * frameLength];
+        Fragments fragments = attrs.newFragments(Tag.PixelData, VR.OB, FRAMES + 1);
+        fragments.add(new byte[0]);
+        for (int f = 0; f < FRAMES; f++) {
+            for (int r = 0; r < ROWS; r++) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    pixelData[f * frameLength + r * COLUMNS + c] = (byte) (r + c / 16 + f);
+                }
+            }
+            fragments.add(rle(pixelData, f * frameLength, frameLength));
+        }
+        try (DicomOutputStream out = new DicomOutputStream(file.toFile())) {
+            out.writeDataset(attrs.createFileMetaInformation(UID.RLELossless), attrs);
+        }
+        return pixelData;
+    }
+    
+    /*
+     * Encodes one frame with one sample of 8 bits as one PackBits segment.
+     */
+    private static byte[] rle(byte[] b, int off, int len) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len);
+        // header: number of segments and offset of the first segment
+        writeIntLE(out, 1);
+        writeIntLE(out, 64);
+        for (int i = 2; i < 16; i++) {
+            writeIntLE(out, 0);
+        }
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            int run = 1;
+            while (i + run < end && run < 128 && b[i + run] == b[i]) {
+                run++;
+            }
+            if (run > 1) {
+                out.write(1 - run);
+                out.write(b[i]);
+                i += run;
+                continue;
+            }
+            int literal = 1;
+            while (i + literal < end && literal < 128
+                    && !(i + literal + 1 < end && b[i + literal] == b[i + literal + 1])) {
+                literal++;
+            }
+            out.write(literal - 1);
+            out.write(b, i, literal);
+            i += literal;
+        }
+        if ((out.size() & 1) != 0) {
+            // no-op
+            out.write(-128);
+        }
+        return out.toByteArray();
+    }
+    
+    private static void writeIntLE(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+}
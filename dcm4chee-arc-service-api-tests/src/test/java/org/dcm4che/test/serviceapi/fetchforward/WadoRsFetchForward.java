@@ -0,0 +1,465 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches instances from external devices providing a WADO-RS service over
+ * HTTP, and all other instances by DIMSE through the
+ * {@link FetchForwardService}.
+ * <p>
+ * The transport is chosen by the location of the best availability of each
+ * instance. For instances to fetch by WADO-RS, the series of each instance
+ * is looked up in the metadata of its study, in parallel for all studies.
+ * Series retrieved completely are retrieved by one series level request.
+ * The instances of other series are split into {@link #getRangesPerSeries()}
+ * ranges, which are retrieved in parallel by instance level requests.
+ * Instances which could not be retrieved over HTTP, e.g. of a range which
+ * failed, are fetched by DIMSE afterwards, without affecting the other
+ * ranges.
+ * <p>
+ * The multipart responses are decoded by a {@link MultipartReader} and each
+ * instance is passed to the {@link Receiver} while it is received. The
+ * callback is invoked concurrently with a <code>null</code> C-STORE response
+ * for instances fetched over HTTP, and therefore has to be thread safe.
+ */
+public class WadoRsFetchForward {
+    private static final Logger LOG = LoggerFactory.getLogger(WadoRsFetchForward.class);
+    
+    private static final String MULTIPART_DICOM = "multipart/related; type=\"application/dicom\"";
+    
+    private static final String MULTIPART_DICOM_XML = "multipart/related; type=\"application/dicom+xml\"";
+    
+    public interface Receiver {
+        /**
+         * Called for each instance received over HTTP, possibly concurrently.
+         * The stream ends with the instance and is not buffered as a whole.
+         */
+        void receive(ArchiveInstanceLocator ref, InputStream in) throws IOException;
+    }
+    
+    private final FetchForwardService fetchForwardService;
+    private final Receiver receiver;
+    private final Map<String, String> baseURLs = new ConcurrentHashMap<String, String>();
+    private int rangesPerSeries = 4;
+    private int maxConnections = 8;
+    
+    private final AtomicInteger httpRequests = new AtomicInteger();
+    private final AtomicInteger fetchedOverHttp = new AtomicInteger();
+    private final AtomicInteger failedOverHttp = new AtomicInteger();
+    
+    public WadoRsFetchForward(FetchForwardService fetchForwardService, Receiver receiver) {
+        this.fetchForwardService = fetchForwardService;
+        this.receiver = receiver;
+    }
+    
+    /**
+     * Fetches instances located at the specified external device by WADO-RS
+     * from the specified base URL instead of by DIMSE.
+     */
+    public void addWadoRsDevice(String deviceName, String baseURL) {
+        baseURLs.put(deviceName, baseURL);
+    }
+    
+    public void removeWadoRsDevice(String deviceName) {
+        baseURLs.remove(deviceName);
+    }
+    
+    public int getRangesPerSeries() {
+        return rangesPerSeries;
+    }
+    
+    public void setRangesPerSeries(int rangesPerSeries) {
+        if (rangesPerSeries <= 0) {
+            throw new IllegalArgumentException("rangesPerSeries: " + rangesPerSeries);
+        }
+        this.rangesPerSeries = rangesPerSeries;
+    }
+    
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+    
+    public int getHttpRequests() {
+        return httpRequests.get();
+    }
+    
+    public int getFetchedOverHttp() {
+        return fetchedOverHttp.get();
+    }
+    
+    /**
+     * Returns the number of instances which could not be retrieved over HTTP
+     * and were fetched by DIMSE instead.
+     */
+    public int getFailedOverHttp() {
+        return failedOverHttp.get();
+    }
+    
+    /**
+     * @return instances which could not be fetched
+     */
+    public List<ArchiveInstanceLocator> fetchForward(String aeTitle, List<ArchiveInstanceLocator> refs,
+            FetchForwardCallBack fetchCallBack) throws Exception {
+        List<ArchiveInstanceLocator> dimseRefs = new ArrayList<ArchiveInstanceLocator>();
+        // base URL -> Study Instance UID -> instances
+        Map<String, Map<String, List<ArchiveInstanceLocator>>> httpRefs =
+                new LinkedHashMap<String, Map<String, List<ArchiveInstanceLocator>>>();
+        for (ArchiveInstanceLocator ref : refs) {
+            String baseURL = wadoRsBaseURLOf(ref);
+            if (baseURL == null) {
+                dimseRefs.add(ref);
+                continue;
+            }
+            Map<String, List<ArchiveInstanceLocator>> byStudy = httpRefs.get(baseURL);
+            if (byStudy == null) {
+                httpRefs.put(baseURL, byStudy = new LinkedHashMap<String, List<ArchiveInstanceLocator>>());
+            }
+            List<ArchiveInstanceLocator> studyRefs = byStudy.get(ref.getStudyInstanceUID());
+            if (studyRefs == null) {
+                byStudy.put(ref.getStudyInstanceUID(), studyRefs = new ArrayList<ArchiveInstanceLocator>());
+            }
+            studyRefs.add(ref);
+        }
+        
+        if (httpRefs.isEmpty()) {
+            return fetchForwardService.fetchForward(aeTitle, dimseRefs, fetchCallBack, fetchCallBack);
+        }
+        List<ArchiveInstanceLocator> failed = new ArrayList<ArchiveInstanceLocator>();
+        // instances not retrieved over HTTP
+        List<ArchiveInstanceLocator> httpFailed =
+                Collections.synchronizedList(new ArrayList<ArchiveInstanceLocator>());
+        ExecutorService executor = Executors.newFixedThreadPool(maxConnections);
+        try {
+            List<Future<?>> studies = new ArrayList<Future<?>>();
+            // submitted by the study lookups
+            List<Future<?>> ranges = Collections.synchronizedList(new ArrayList<Future<?>>());
+            for (Map.Entry<String, Map<String, List<ArchiveInstanceLocator>>> entry : httpRefs.entrySet()) {
+                for (List<ArchiveInstanceLocator> studyRefs : entry.getValue().values()) {
+                    studies.add(submitStudy(executor, entry.getKey(), studyRefs, fetchCallBack, httpFailed,
+                            ranges));
+                }
+            }
+            // DIMSE in parallel with the HTTP requests
+            try {
+                if (!dimseRefs.isEmpty()) {
+                    failed.addAll(fetchForwardService.fetchForward(aeTitle, dimseRefs, fetchCallBack, fetchCallBack));
+                }
+            } finally {
+                // all ranges are submitted once the study lookups completed
+                await(studies, "Failed to retrieve metadata");
+                await(ranges, "Failed to retrieve range");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (!httpFailed.isEmpty()) {
+            LOG.info("Fetching {} instances not retrieved over HTTP by DIMSE", httpFailed.size());
+            failedOverHttp.addAndGet(httpFailed.size());
+            failed.addAll(fetchForwardService.fetchForward(aeTitle, httpFailed, fetchCallBack, fetchCallBack));
+        }
+        return failed;
+    }
+    
+    /*
+     * Waits for all tasks. A task which failed has already added its instances
+     * not received to the instances failed over HTTP.
+     */
+    private static void await(List<Future<?>> tasks, String msg) throws InterruptedException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                LOG.warn(msg, e.getCause());
+            }
+        }
+    }
+    
+    private String wadoRsBaseURLOf(ArchiveInstanceLocator ref) {
+        List<ExternalLocationTuple> extLocators = ref.getExternalLocators();
+        if (extLocators == null || extLocators.isEmpty()) {
+            return null;
+        }
+        ExternalLocationTuple best = null;
+        for (ExternalLocationTuple location : extLocators) {
+            // Availability constants are declared from ONLINE to UNAVAILABLE
+            if (best == null || location.getAvailability().compareTo(best.getAvailability()) < 0) {
+                best = location;
+            }
+        }
+        return baseURLs.get(best.getRetrieveDeviceName());
+    }
+    
+    /*
+     * Looks up the series of the instances of one study in its metadata, and
+     * submits the ranges to retrieve them to the executor.
+     */
+    private Future<?> submitStudy(final ExecutorService executor, final String baseURL,
+            final List<ArchiveInstanceLocator> studyRefs, final FetchForwardCallBack fetchCallBack,
+            final List<ArchiveInstanceLocator> failed, final List<Future<?>> ranges) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                submitRanges(executor, baseURL, studyRefs, fetchCallBack, failed, ranges);
+            }
+        });
+    }
+    
+    private void submitRanges(ExecutorService executor, final String baseURL,
+            List<ArchiveInstanceLocator> studyRefs, final FetchForwardCallBack fetchCallBack,
+            final List<ArchiveInstanceLocator> failed, List<Future<?>> ranges) {
+        final String studyIUID = studyRefs.get(0).getStudyInstanceUID();
+        // Series Instance UID -> all instances of the series in the metadata
+        Map<String, Set<String>> seriesOfStudy;
+        try {
+            seriesOfStudy = retrieveSeriesOfStudy(baseURL, studyIUID);
+        } catch (IOException e) {
+            LOG.warn("Failed to retrieve metadata of study {} from {}", studyIUID, baseURL, e);
+            failed.addAll(studyRefs);
+            return;
+        }
+        Map<String, String> seriesByIuid = new HashMap<String, String>();
+        for (Map.Entry<String, Set<String>> entry : seriesOfStudy.entrySet()) {
+            for (String iuid : entry.getValue()) {
+                seriesByIuid.put(iuid, entry.getKey());
+            }
+        }
+        Map<String, List<ArchiveInstanceLocator>> bySeries = new LinkedHashMap<String, List<ArchiveInstanceLocator>>();
+        for (ArchiveInstanceLocator ref : studyRefs) {
+            String seriesIUID = seriesByIuid.get(ref.iuid);
+            if (seriesIUID == null) {
+                failed.add(ref);
+                continue;
+            }
+            List<ArchiveInstanceLocator> seriesRefs = bySeries.get(seriesIUID);
+            if (seriesRefs == null) {
+                bySeries.put(seriesIUID, seriesRefs = new ArrayList<ArchiveInstanceLocator>());
+            }
+            seriesRefs.add(ref);
+        }
+        for (Map.Entry<String, List<ArchiveInstanceLocator>> entry : bySeries.entrySet()) {
+            final String seriesURL = baseURL + "/studies/" + studyIUID + "/series/" + entry.getKey();
+            List<ArchiveInstanceLocator> seriesRefs = entry.getValue();
+            if (seriesRefs.size() == seriesOfStudy.get(entry.getKey()).size()) {
+                final List<ArchiveInstanceLocator> range = seriesRefs;
+                ranges.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        retrieveSeries(seriesURL, range, fetchCallBack, failed);
+                    }
+                }));
+                continue;
+            }
+            int numRanges = Math.min(rangesPerSeries, seriesRefs.size());
+            for (int i = 0; i < numRanges; i++) {
+                final List<ArchiveInstanceLocator> range = seriesRefs.subList(
+                        i * seriesRefs.size() / numRanges, (i + 1) * seriesRefs.size() / numRanges);
+                ranges.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        retrieveInstances(seriesURL, range, fetchCallBack, failed);
+                    }
+                }));
+            }
+        }
+    }
+    
+    private Map<String, Set<String>> retrieveSeriesOfStudy(String baseURL, String studyIUID) throws IOException {
+        Map<String, Set<String>> series = new HashMap<String, Set<String>>();
+        HttpURLConnection conn = open(baseURL + "/studies/" + studyIUID + "/metadata", MULTIPART_DICOM_XML);
+        InputStream in = conn.getInputStream();
+        try {
+            MultipartReader reader = new MultipartReader(in, MultipartReader.boundaryOf(conn.getContentType()));
+            MultipartReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                Attributes attrs;
+                try {
+                    attrs = SAXReader.parse(part.getInputStream());
+                } catch (Exception e) {
+                    throw new IOException("Failed to parse metadata of study " + studyIUID, e);
+                }
+                String seriesIUID = attrs.getString(Tag.SeriesInstanceUID);
+                Set<String> iuids = series.get(seriesIUID);
+                if (iuids == null) {
+                    series.put(seriesIUID, iuids = new HashSet<String>());
+                }
+                iuids.add(attrs.getString(Tag.SOPInstanceUID));
+            }
+            drain(in);
+        } finally {
+            in.close();
+        }
+        return series;
+    }
+    
+    private void retrieveSeries(String seriesURL, List<ArchiveInstanceLocator> refs,
+            FetchForwardCallBack fetchCallBack, List<ArchiveInstanceLocator> failed) {
+        Map<String, ArchiveInstanceLocator> pending = new HashMap<String, ArchiveInstanceLocator>();
+        for (ArchiveInstanceLocator ref : refs) {
+            pending.put(ref.iuid, ref);
+        }
+        try {
+            retrieve(seriesURL, pending, fetchCallBack);
+        } catch (IOException e) {
+            LOG.warn("Failed to retrieve {}", seriesURL, e);
+        } finally {
+            failed.addAll(pending.values());
+        }
+    }
+    
+    private void retrieveInstances(String seriesURL, List<ArchiveInstanceLocator> refs,
+            FetchForwardCallBack fetchCallBack, List<ArchiveInstanceLocator> failed) {
+        Map<String, ArchiveInstanceLocator> pending = new LinkedHashMap<String, ArchiveInstanceLocator>();
+        for (ArchiveInstanceLocator ref : refs) {
+            pending.put(ref.iuid, ref);
+        }
+        try {
+            for (ArchiveInstanceLocator ref : refs) {
+                Map<String, ArchiveInstanceLocator> instance = new HashMap<String, ArchiveInstanceLocator>(2);
+                instance.put(ref.iuid, ref);
+                String url = seriesURL + "/instances/" + ref.iuid;
+                try {
+                    retrieve(url, instance, fetchCallBack);
+                } catch (IOException e) {
+                    LOG.warn("Failed to retrieve {}", url, e);
+                }
+                if (instance.isEmpty()) {
+                    pending.remove(ref.iuid);
+                }
+            }
+        } finally {
+            // also the instances not tried, if the range is aborted by a RuntimeException
+            failed.addAll(pending.values());
+        }
+    }
+    
+    /*
+     * Passes each received instance to the receiver and removes it from pending.
+     */
+    private void retrieve(String url, Map<String, ArchiveInstanceLocator> pending,
+            FetchForwardCallBack fetchCallBack) throws IOException {
+        HttpURLConnection conn = open(url, MULTIPART_DICOM);
+        InputStream in = conn.getInputStream();
+        try {
+            MultipartReader reader = new MultipartReader(in, MultipartReader.boundaryOf(conn.getContentType()));
+            MultipartReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                String location = part.getContentLocation();
+                ArchiveInstanceLocator ref = location != null
+                        ? pending.get(location.substring(location.lastIndexOf('/') + 1))
+                        : pending.size() == 1 ? pending.values().iterator().next() : null;
+                if (ref == null) {
+                    continue;
+                }
+                receiver.receive(ref, part.getInputStream());
+                pending.remove(ref.iuid);
+                fetchedOverHttp.incrementAndGet();
+                fetchCallBack.onFetch(Collections.singletonList(ref), null);
+            }
+            drain(in);
+        } finally {
+            in.close();
+        }
+    }
+    
+    private HttpURLConnection open(String url, String accept) throws IOException {
+        httpRequests.incrementAndGet();
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestProperty("Accept", accept);
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            InputStream err = conn.getErrorStream();
+            if (err != null) {
+                err.close();
+            }
+            throw new IOException("GET " + url + " returned " + status);
+        }
+        if (MultipartReader.boundaryOf(conn.getContentType()) == null) {
+            conn.getInputStream().close();
+            throw new IOException("GET " + url + " returned " + conn.getContentType());
+        }
+        return conn;
+    }
+    
+    /*
+     * Reads the epilogue, so the connection can be reused.
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[256];
+        while (in.read(buf) >= 0) {
+            // NOP
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.AfterSuite;
+import org.dcm4che.test.serviceapi.fetchforward.ArquillianExtendedLifecycleMethodExecuter.BeforeSuite;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.fetch.forward.FetchForwardService;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.storage.conf.Availability;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of fetching a study from the external device by
+ * DIMSE with fetching it from a {@link WadoRsStandIn} by WADO-RS, with one
+ * series level request and with parallel instance ranges.
+ * <p>
+ * The numbers of the two transports are not comparable as end-to-end
+ * throughput: instances fetched by DIMSE are received and stored by the
+ * archive, while instances fetched over HTTP are only spooled to temporary
+ * files by the {@link WadoRsFetchForward.Receiver} of the test, without any
+ * update of the DB. They compare the transfer, not the ingest.
+ * <p>
+ * Instances which are not served by the stand-in are fetched by DIMSE
+ * afterwards.
+ */
+@RunWith(Arquillian.class)
+public class WadoRsFetchForwardTest {
+    private static final Logger LOG = LoggerFactory.getLogger(WadoRsFetchForwardTest.class);
+    
+    static final int STUDY_SIZE = 200;
+    
+    private static final String INSTANCE_HEADER = "testdata/DB700C26_original.xml";
+    
+    private static final String EXT_DEVICE = "extdcm";
+    
+    private static final int SERIES_LEVEL_PORT = 11180;
+    
+    private static final int RANGES_PORT = 11181;
+    
+    private static final int PARTIAL_PORT = 11182;
+    
+    private static final int RANGES_PER_SERIES = 4;
+    
+    @Inject
+    private FetchForwardService fetchForwardService;
+    
+    @Inject
+    private StoreService storeService;
+    
+    @Inject
+    private Device device;
+    
+    @BeforeSuite
+    public static void beforeSuite() {
+        ExternalDeviceInvoker.invoke("setupExternalDevice", 4 * STUDY_SIZE);
+    }
+    
+    @AfterSuite
+    public static void afterSuite() {
+        ExternalDeviceInvoker.invoke("stopExternalDevice");
+    }
+    
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war= ShrinkWrap.create(WebArchive.class, "test.war");
+        war.addClass(WadoRsFetchForwardTest.class);
+        war.addClass(MultipartReader.class);
+        war.addClass(WadoRsStandIn.class);
+        war.addClass(WadoRsFetchForward.class);
+        ITHelper.addTestSupportClassesToWebArchive(war);
+        ITHelper.addDefaultDependenciesToWebArchive(war);
+        war.addAsResource(INSTANCE_HEADER);
+        
+        ITHelper.exportDeployment(war);
+        return war;
+    }
+    
+    @Test
+    public void comparesThroughputWithDimse() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 0, 3 * STUDY_SIZE);
+        Path spoolDir = Files.createTempDirectory("wado-rs-fetch");
+        SpoolingReceiver receiver = new SpoolingReceiver(spoolDir);
+        try {
+            // instances 0 to STUDY_SIZE - 1 from the external device by DIMSE
+            WadoRsFetchForward fetch = new WadoRsFetchForward(fetchForwardService, receiver);
+            double dimse = fetch(fetch, template, 0);
+            Assert.assertEquals(0, fetch.getHttpRequests());
+            
+            // the next STUDY_SIZE instances by one series level request
+            WadoRsStandIn seriesLevel = new WadoRsStandIn(SERIES_LEVEL_PORT, template, STUDY_SIZE, STUDY_SIZE).start();
+            double series;
+            try {
+                fetch = new WadoRsFetchForward(fetchForwardService, receiver);
+                fetch.addWadoRsDevice(EXT_DEVICE, seriesLevel.getBaseURL());
+                fetch.setRangesPerSeries(1);
+                series = fetch(fetch, template, STUDY_SIZE);
+                Assert.assertEquals(STUDY_SIZE, fetch.getFetchedOverHttp());
+                // metadata and series
+                Assert.assertEquals(2, seriesLevel.getRequests());
+                Assert.assertEquals(STUDY_SIZE, seriesLevel.getServedInstances());
+            } finally {
+                seriesLevel.close();
+            }
+            
+            // the last STUDY_SIZE instances by parallel ranges of instance level requests, the
+            // stand-in serves one more instance, so the series is not retrieved completely
+            WadoRsStandIn instanceLevel = new WadoRsStandIn(RANGES_PORT, template, 2 * STUDY_SIZE, STUDY_SIZE + 1)
+                    .start();
+            double ranges;
+            try {
+                fetch = new WadoRsFetchForward(fetchForwardService, receiver);
+                fetch.addWadoRsDevice(EXT_DEVICE, instanceLevel.getBaseURL());
+                fetch.setRangesPerSeries(RANGES_PER_SERIES);
+                ranges = fetch(fetch, template, 2 * STUDY_SIZE);
+                Assert.assertEquals(STUDY_SIZE, fetch.getFetchedOverHttp());
+                Assert.assertEquals(1 + STUDY_SIZE, instanceLevel.getRequests());
+                Assert.assertEquals(STUDY_SIZE, instanceLevel.getServedInstances());
+            } finally {
+                instanceLevel.close();
+            }
+            
+            LOG.info("Fetched {} instances by DIMSE: {} instances/s, by WADO-RS series request: {} instances/s, "
+                    + "by WADO-RS in {} ranges: {} instances/s ({} bytes spooled without DB update)",
+                    STUDY_SIZE, String.format("%.1f", dimse), String.format("%.1f", series),
+                    RANGES_PER_SERIES, String.format("%.1f", ranges), receiver.bytes.get());
+            Assert.assertEquals(2 * STUDY_SIZE, receiver.instances.get());
+        } finally {
+            deleteDir(spoolDir);
+        }
+    }
+    
+    @Test
+    public void fetchesInstancesNotServedOverHttpByDimse() throws Exception {
+        Attributes template = load(INSTANCE_HEADER);
+        ArchiveTestSupport.storeSyntheticInstancesToDB(storeService, device, template, 3 * STUDY_SIZE, STUDY_SIZE);
+        Path spoolDir = Files.createTempDirectory("wado-rs-fetch");
+        SpoolingReceiver receiver = new SpoolingReceiver(spoolDir);
+        // the stand-in only serves the first half of the study
+        WadoRsStandIn partial = new WadoRsStandIn(PARTIAL_PORT, template, 3 * STUDY_SIZE, STUDY_SIZE / 2).start();
+        try {
+            WadoRsFetchForward fetch = new WadoRsFetchForward(fetchForwardService, receiver);
+            fetch.addWadoRsDevice(EXT_DEVICE, partial.getBaseURL());
+            fetch(fetch, template, 3 * STUDY_SIZE);
+            Assert.assertEquals(STUDY_SIZE / 2, fetch.getFetchedOverHttp());
+            Assert.assertEquals(STUDY_SIZE - STUDY_SIZE / 2, fetch.getFailedOverHttp());
+            Assert.assertEquals(STUDY_SIZE / 2, receiver.instances.get());
+        } finally {
+            partial.close();
+            deleteDir(spoolDir);
+        }
+    }
+    
+    private double fetch(WadoRsFetchForward fetch, Attributes template, int offset) throws Exception {
+        List<ArchiveInstanceLocator> refs = ArchiveTestSupport.createSyntheticLocators(
+                template, offset, STUDY_SIZE, new ExternalLocationTuple(EXT_DEVICE, Availability.NEARLINE));
+        final AtomicInteger fetched = new AtomicInteger();
+        FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+            @Override
+            public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                    BasicCStoreSCUResp basicCStoreSCUresp) {
+                fetched.addAndGet(instances.size());
+            }
+        };
+        long start = System.nanoTime();
+        List<ArchiveInstanceLocator> failed = fetch.fetchForward("DCM4CHEE", refs, fetchCallBack);
+        long elapsed = System.nanoTime() - start;
+        Assert.assertTrue(failed.isEmpty());
+        Assert.assertEquals(STUDY_SIZE, fetched.get());
+        return STUDY_SIZE * 1e9 / elapsed;
+    }
+    
+    private static final class SpoolingReceiver implements WadoRsFetchForward.Receiver {
+        final Path dir;
+        final AtomicInteger instances = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        
+        SpoolingReceiver(Path dir) {
+            this.dir = dir;
+        }
+        
+        @Override
+        public void receive(ArchiveInstanceLocator ref, InputStream in) throws IOException {
+            bytes.addAndGet(Files.copy(in, dir.resolve(ref.iuid)));
+            instances.incrementAndGet();
+        }
+    }
+    
+    private static void deleteDir(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+    
+    private static Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+}
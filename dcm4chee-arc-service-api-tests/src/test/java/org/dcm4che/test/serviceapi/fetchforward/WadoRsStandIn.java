@@ -0,0 +1,255 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.test.serviceapi.fetchforward;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.stream.StreamResult;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.io.SAXTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server standing in for the WADO-RS service of an external device.
+ * <p>
+ * Serves instances <code>from</code> to <code>from + count - 1</code>
+ * derived by {@link SyntheticInstances}, which all belong to the study and
+ * series of the template, at
+ * <pre>
+ * {base}/studies/{study}/metadata
+ * {base}/studies/{study}
+ * {base}/studies/{study}/series/{series}
+ * {base}/studies/{study}/series/{series}/instances/{instance}
+ * </pre>
+ * Each response is written as chunked <code>multipart/related</code> body
+ * while the instances are encoded, with the URL of the instance as
+ * <code>Content-Location</code> of each part.
+ */
+public class WadoRsStandIn implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WadoRsStandIn.class);
+    
+    public static final String CONTEXT_PATH = "/wado/rs";
+    
+    private static final String BOUNDARY = "dcm4chee-wado-rs-stand-in";
+    
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Attributes template;
+    private final String studyIUID;
+    private final String seriesIUID;
+    private final int from;
+    private final int count;
+    
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger servedInstances = new AtomicInteger();
+    
+    public WadoRsStandIn(int port, Attributes template, int from, int count) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.template = template;
+        this.studyIUID = template.getString(Tag.StudyInstanceUID);
+        this.seriesIUID = template.getString(Tag.SeriesInstanceUID);
+        this.from = from;
+        this.count = count;
+        server.setExecutor(executor);
+        server.createContext(CONTEXT_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    onRequest(exchange);
+                } catch (IOException e) {
+                    LOG.warn("Failed to serve {}", exchange.getRequestURI(), e);
+                    throw e;
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+    
+    public WadoRsStandIn start() {
+        server.start();
+        LOG.info("Serving {} instances at {}", count, getBaseURL());
+        return this;
+    }
+    
+    public String getBaseURL() {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT_PATH;
+    }
+    
+    public int getRequests() {
+        return requests.get();
+    }
+    
+    public int getServedInstances() {
+        return servedInstances.get();
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    private void onRequest(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        // studies/{study}[/metadata | /series/{series}[/instances/{instance}]]
+        String[] path = exchange.getRequestURI().getPath()
+                .substring(CONTEXT_PATH.length() + 1).split("/");
+        if (path.length < 2 || !path[0].equals("studies") || !path[1].equals(studyIUID)) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        if (path.length == 3 && path[2].equals("metadata")) {
+            sendMultipart(exchange, "application/dicom+xml", allInstances(), true);
+            return;
+        }
+        if (path.length == 2) {
+            sendMultipart(exchange, "application/dicom", allInstances(), false);
+            return;
+        }
+        if (path.length < 4 || !path[2].equals("series") || !path[3].equals(seriesIUID)) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        if (path.length == 4) {
+            sendMultipart(exchange, "application/dicom", allInstances(), false);
+            return;
+        }
+        int index = path.length == 6 && path[4].equals("instances") ? indexOf(path[5]) : -1;
+        if (index < 0) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        sendMultipart(exchange, "application/dicom", Collections.singletonList(index), false);
+    }
+    
+    private List<Integer> allInstances() {
+        List<Integer> indexes = new ArrayList<Integer>(count);
+        for (int i = from, end = from + count; i < end; i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+    
+    private int indexOf(String iuid) {
+        String prefix = template.getString(Tag.SOPInstanceUID) + '.';
+        if (!iuid.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            // inverse of SyntheticInstances.sopInstanceUID
+            int index = Integer.parseInt(iuid.substring(prefix.length())) - 1;
+            return index >= from && index < from + count ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private void sendMultipart(HttpExchange exchange, String type, List<Integer> indexes,
+            boolean metadata) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                "multipart/related; type=\"" + type + "\"; boundary=" + BOUNDARY);
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream out = exchange.getResponseBody();
+        // the part writers must not close the response body
+        OutputStream part = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+            
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        for (int index : indexes) {
+            Attributes attrs = SyntheticInstances.createInstance(template, index);
+            String iuid = attrs.getString(Tag.SOPInstanceUID);
+            writeAscii(out, "--" + BOUNDARY + "\r\n"
+                    + "Content-Type: " + type + "\r\n"
+                    + "Content-Location: " + getBaseURL() + "/studies/" + studyIUID
+                    + "/series/" + seriesIUID + "/instances/" + iuid + "\r\n\r\n");
+            if (metadata) {
+                try {
+                    SAXTransformer.getSAXWriter(new StreamResult(part)).write(attrs);
+                } catch (Exception e) {
+                    throw new IOException("Failed to encode metadata of " + iuid, e);
+                }
+            } else {
+                DicomOutputStream dos = new DicomOutputStream(part, UID.ExplicitVRLittleEndian);
+                dos.writeDataset(attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian), attrs);
+                dos.flush();
+                servedInstances.incrementAndGet();
+            }
+            writeAscii(out, "\r\n");
+        }
+        writeAscii(out, "--" + BOUNDARY + "--\r\n");
+        out.close();
+    }
+    
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}